@@ -0,0 +1,63 @@
+package frc.lib.robopilink;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.locks.LockSupport;
+
+import com.diozero.api.GpioEventTrigger;
+import com.diozero.api.GpioPullUpDown;
+import com.diozero.api.PinInfo;
+import com.diozero.internal.provider.mock.MockDeviceFactory;
+import com.diozero.internal.spi.GpioDigitalInputDeviceInterface;
+import com.diozero.internal.spi.GpioDigitalOutputDeviceInterface;
+
+/**
+ * A {@link MockDeviceFactory} whose digital devices stall every read and write for a fixed time,
+ * standing in for the pigpiod socket round trip.
+ *
+ * <p>The mock board only has digital pins, so PWM and servo outputs are driven in software on top
+ * of the digital outputs created here and see the same delay.
+ */
+public class LatencyMockDeviceFactory extends MockDeviceFactory {
+    private final long m_latencyNanos;
+
+    public LatencyMockDeviceFactory(long latencyMicros) {
+        m_latencyNanos = latencyMicros * 1000;
+    }
+
+    @Override
+    public GpioDigitalInputDeviceInterface createDigitalInputDevice(String key, PinInfo pinInfo,
+            GpioPullUpDown pud, GpioEventTrigger trigger) {
+        return delayed(GpioDigitalInputDeviceInterface.class, super.createDigitalInputDevice(key, pinInfo, pud, trigger));
+    }
+
+    @Override
+    public GpioDigitalOutputDeviceInterface createDigitalOutputDevice(String key, PinInfo pinInfo,
+            boolean initialValue) {
+        return delayed(GpioDigitalOutputDeviceInterface.class, super.createDigitalOutputDevice(key, pinInfo, initialValue));
+    }
+
+    private <T> T delayed(Class<T> type, T device) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            String name = method.getName();
+            if (name.equals("getValue") || name.equals("setValue")) {
+                stall();
+            }
+            try {
+                return method.invoke(device, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        };
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+
+    private void stall() {
+        long end = System.nanoTime() + m_latencyNanos;
+        long remaining;
+        while ((remaining = end - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package frc.lib.robopilink;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the real pigpiod socket path against a {@link MockPigpiod} on localhost, comparing one
+ * round trip per pin with a single batched bank write.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PigpioSocketBenchmark {
+    private static final int kFirstPort = 3;
+
+    @Param({"8"})
+    public int pins;
+
+    @Param({"0", "0.002"})
+    public double latencySeconds;
+
+    private MockPigpiod m_pigpiod;
+    private PigpioConnection m_pigpio;
+    private boolean m_toggle = false;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        m_pigpiod = new MockPigpiod();
+        m_pigpiod.setLatency(latencySeconds);
+        m_pigpio = new PigpioConnection(m_pigpiod.getHost(), m_pigpiod.getPort());
+        for (int pin = kFirstPort; pin < kFirstPort + pins; pin++) {
+            m_pigpio.command(PigpioConnection.CMD_MODES, pin, MockPigpiod.MODE_OUTPUT);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        m_pigpio.close();
+        m_pigpiod.close();
+    }
+
+    @Benchmark
+    public void writePerPin() throws IOException {
+        m_toggle = !m_toggle;
+        for (int pin = kFirstPort; pin < kFirstPort + pins; pin++) {
+            m_pigpio.command(PigpioConnection.CMD_WRITE, pin, m_toggle ? 1 : 0);
+        }
+    }
+
+    @Benchmark
+    public void writeBank() throws IOException {
+        m_toggle = !m_toggle;
+        int mask = ((1 << pins) - 1) << kFirstPort;
+        m_pigpio.queueBankWrite(m_toggle ? mask : 0, m_toggle ? 0 : mask, 0, 0);
+        m_pigpio.flush();
+    }
+}
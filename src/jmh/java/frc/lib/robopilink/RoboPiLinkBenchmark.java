@@ -0,0 +1,96 @@
+package frc.lib.robopilink;
+
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.diozero.internal.provider.mock.MockDeviceFactory;
+
+/**
+ * Measures one enabled RoboPiLink cycle, from the loop walking its devices to the command runner
+ * finishing every write, with {@code devicesPerType} of each RPL device registered.
+ *
+ * <p>Throughput mode gives cycles per millisecond, sample time mode gives the cycle time
+ * distribution including p0.99, and the gc profiler configured in build.gradle gives the allocation
+ * rate. A latency of 0 uses the plain {@link MockDeviceFactory}; anything else stalls every device
+ * read and write through {@link LatencyMockDeviceFactory}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RoboPiLinkBenchmark {
+    // the mock board has pins 2-40 and pin 2 is kept free for the watchdog ping
+    private static final int kFirstPort = 3;
+
+    private static final OptionalDouble kForward = OptionalDouble.of(0.5);
+    private static final OptionalDouble kReverse = OptionalDouble.of(-0.5);
+
+    @Param({"1", "4", "9"})
+    public int devicesPerType;
+
+    @Param({"0", "250"})
+    public long latencyMicros;
+
+    private MockDeviceFactory m_factory;
+    private RoboPiLink m_link;
+    private RPLOutputDigital[] m_digitals;
+    private RPLOutputPWM[] m_pwms;
+    private RPLOutputServo[] m_servos;
+    private boolean m_toggle = false;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        m_factory = latencyMicros == 0 ? new MockDeviceFactory() : new LatencyMockDeviceFactory(latencyMicros);
+        new MockBoardConfigurator().configure(m_factory.getBoardPinInfo());
+        m_link = new RoboPiLink(m_factory, OptionalInt.empty());
+
+        m_digitals = new RPLOutputDigital[devicesPerType];
+        m_pwms = new RPLOutputPWM[devicesPerType];
+        m_servos = new RPLOutputServo[devicesPerType];
+        int port = kFirstPort;
+        for (int n = 0; n < devicesPerType; n++) {
+            m_digitals[n] = new RPLOutputDigital(m_link, port++);
+            m_pwms[n] = new RPLOutputPWM(m_link, port++);
+            m_servos[n] = new RPLOutputServo(m_link, port++);
+            new RPLInputDigital(m_link, port++);
+        }
+
+        // leave the disabled state so every benchmark cycle is an enabled periodic
+        m_link.runCycle(false);
+        m_link.block();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        m_factory.close();
+    }
+
+    @Benchmark
+    public void cycleUnchanged() {
+        m_link.runCycle(false);
+        m_link.block();
+    }
+
+    @Benchmark
+    public void cycleAllChanged() {
+        m_toggle = !m_toggle;
+        for (int n = 0; n < devicesPerType; n++) {
+            m_digitals[n].setValue(m_toggle);
+            m_pwms[n].setValue(m_toggle ? 0.75 : 0.25);
+            m_servos[n].setValue(m_toggle ? kForward : kReverse);
+        }
+        m_link.runCycle(false);
+        m_link.block();
+    }
+}
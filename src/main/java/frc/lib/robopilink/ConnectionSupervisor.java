@@ -0,0 +1,136 @@
+package frc.lib.robopilink;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Watches the connection to the Pi and brings it back after it fails.
+ *
+ * <p>Any thread that sees an I/O failure reports it with the connection generation it was using.
+ * The first report marks the link offline and wakes the supervisor thread, which waits for every
+ * thread still using the old connection to {@link #release()} it and then retries
+ * {@link Reconnector#reconnect()} with exponential backoff, bounded between
+ * {@link #kMinBackoffSeconds} and {@link #kMaxBackoffSeconds}, until it succeeds. Every attempt
+ * starts a new generation, so late reports about the old connection are ignored.
+ */
+public class ConnectionSupervisor {
+    public static final double kMinBackoffSeconds = 0.005;
+    public static final double kMaxBackoffSeconds = 0.5;
+
+    public interface Reconnector {
+        /**
+         * Opens new connections and restores every pin. Called on the supervisor thread once no
+         * other thread holds the connection.
+         */
+        void reconnect() throws Exception;
+    }
+
+    private final Reconnector m_reconnector;
+    private final RoboPiLinkStats m_stats;
+    private final Thread m_thread;
+
+    private volatile boolean m_connected = true;
+    private volatile int m_generation = 0;
+    private volatile long m_failureNanos = 0;
+    private volatile long m_lastReconnectNanos = 0;
+    private final AtomicInteger m_users = new AtomicInteger();
+
+    ConnectionSupervisor(Reconnector reconnector, RoboPiLinkStats stats) {
+        m_reconnector = reconnector;
+        m_stats = stats;
+        m_thread = new Thread(this::run, "RoboPiLink supervisor");
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    public boolean isConnected() {
+        return m_connected;
+    }
+
+    /**
+     * Gets the current connection generation. Capture it before using the connection and pass it to
+     * {@link #reportFailure(int, Throwable)} if that use fails.
+     */
+    public int getGeneration() {
+        return m_generation;
+    }
+
+    /**
+     * Marks the calling thread as using the connection, unless the link is offline. Pair every
+     * successful call with {@link #release()}; the connection is only replaced once every user has
+     * released it.
+     *
+     * @return false if the link is offline
+     */
+    public boolean acquire() {
+        m_users.incrementAndGet();
+        if (m_connected) return true;
+        release();
+        return false;
+    }
+
+    public void release() {
+        if (m_users.decrementAndGet() == 0 && !m_connected) {
+            LockSupport.unpark(m_thread);
+        }
+    }
+
+    /**
+     * Gets how long the last reconnect took, from the failure being reported to the link being back.
+     */
+    public double getLastReconnectSeconds() {
+        return m_lastReconnectNanos / 1e9;
+    }
+
+    /**
+     * Reports that using the connection failed.
+     *
+     * @return true if this report took the link offline, false if it was already offline or the
+     *     report was about an older connection
+     */
+    public boolean reportFailure(int generation, Throwable cause) {
+        synchronized (this) {
+            if (!m_connected || generation != m_generation) return false;
+            m_connected = false;
+            m_failureNanos = System.nanoTime();
+        }
+        m_stats.recordDisconnect();
+        System.out.println("RoboPiLink lost the connection to the Pi: " + cause);
+        LockSupport.unpark(m_thread);
+        return true;
+    }
+
+    private void run() {
+        while (true) {
+            if (m_connected) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            // the old connection's users see it fail and let go of it soon after the failure
+            while (m_users.get() != 0) {
+                LockSupport.parkNanos(this, 1_000_000);
+            }
+
+            long backoffNanos = (long) (kMinBackoffSeconds * 1e9);
+            while (true) {
+                synchronized (this) {
+                    m_generation++;
+                }
+                try {
+                    m_reconnector.reconnect();
+                    break;
+                } catch (Exception e) {
+                    LockSupport.parkNanos(backoffNanos);
+                    backoffNanos = Math.min(backoffNanos * 2, (long) (kMaxBackoffSeconds * 1e9));
+                }
+            }
+
+            long reconnectNanos = System.nanoTime() - m_failureNanos;
+            m_lastReconnectNanos = reconnectNanos;
+            m_stats.recordReconnectTime(reconnectNanos);
+            m_connected = true;
+            System.out.println("RoboPiLink reconnected to the Pi in " + reconnectNanos / 1_000_000 + " ms");
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package frc.lib.robopilink;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Decides which devices' periodic hooks run in each main loop cycle, by {@link ServiceTier}.
+ *
+ * <p>The fast tier runs every cycle, first. Every slower tier is split into as many slices as there
+ * are cycles in its period, and one slice runs per cycle after the fast tier, so slow devices add
+ * the same small cost to every cycle instead of all landing on one. A slice is put off if the fast
+ * tier has already used up the cycle, and run as soon as a later cycle has time, so slow devices
+ * can never make the fast tier late.
+ *
+ * <p>The fast tier misses its deadline when it finishes after the end of the cycle, and a slower
+ * tier when one of its slices runs later than due, which stretches the time between services of
+ * its devices past the tier's period. Misses are counted per tier in {@link RoboPiLinkStats}.
+ */
+class DeviceSchedule {
+    interface Service {
+        void run(PigpiojDevice[] devices);
+    }
+
+    private static final ServiceTier[] kTiers = ServiceTier.values();
+
+    private final PigpiojDevice[] m_fast;
+    // [tier][slice] devices, empty for tiers without devices
+    private final PigpiojDevice[][][] m_slices = new PigpiojDevice[kTiers.length][][];
+    private final long[] m_sliceDue = new long[kTiers.length];
+    private final int[] m_nextSlice = new int[kTiers.length];
+    private long m_cycle = 0;
+
+    /**
+     * @param unitOf what each device must be serviced together with, such as its output group, or
+     *     the device itself; a unit takes the fastest tier of its devices
+     */
+    DeviceSchedule(PigpiojDevice[] devices, Function<PigpiojDevice, ServiceTier> tierOf, Function<PigpiojDevice, Object> unitOf) {
+        List<PigpiojDevice> fast = new ArrayList<>();
+        List<List<List<PigpiojDevice>>> slices = new ArrayList<>();
+        for (ServiceTier tier : kTiers) {
+            List<List<PigpiojDevice>> tierSlices = new ArrayList<>();
+            for (int n = 0; n < tier.getCycles(); n++) {
+                tierSlices.add(new ArrayList<>());
+            }
+            slices.add(tierSlices);
+        }
+        int[] counts = new int[kTiers.length];
+        Map<Object, ServiceTier> unitTiers = new IdentityHashMap<>();
+        for (PigpiojDevice device : devices) {
+            // tiers are declared fastest first
+            unitTiers.merge(unitOf.apply(device), tierOf.apply(device), (a, b) -> a.compareTo(b) <= 0 ? a : b);
+        }
+        Map<Object, Integer> unitSlices = new IdentityHashMap<>();
+        for (PigpiojDevice device : devices) {
+            Object unit = unitOf.apply(device);
+            ServiceTier tier = unitTiers.get(unit);
+            if (tier == ServiceTier.FAST) {
+                fast.add(device);
+            } else {
+                // deal units out round robin so every slice gets its share
+                int t = tier.ordinal();
+                int slice = unitSlices.computeIfAbsent(unit, u -> counts[t]++ % tier.getCycles());
+                slices.get(t).get(slice).add(device);
+            }
+        }
+        m_fast = fast.toArray(new PigpiojDevice[0]);
+        for (ServiceTier tier : kTiers) {
+            int t = tier.ordinal();
+            if (tier == ServiceTier.FAST || counts[t] == 0) {
+                m_slices[t] = new PigpiojDevice[0][];
+                continue;
+            }
+            m_slices[t] = new PigpiojDevice[tier.getCycles()][];
+            for (int n = 0; n < tier.getCycles(); n++) {
+                m_slices[t][n] = slices.get(t).get(n).toArray(new PigpiojDevice[0]);
+            }
+        }
+    }
+
+    /**
+     * Runs this cycle's devices.
+     *
+     * @param startNanos when the cycle started
+     * @param budgetNanos time the cycle may take, its loop period
+     */
+    void run(Service service, long startNanos, long budgetNanos, RoboPiLinkStats stats) {
+        long cycle = m_cycle++;
+        service.run(m_fast);
+        if (System.nanoTime() - startNanos > budgetNanos) {
+            stats.recordDeadlineMiss(ServiceTier.FAST);
+        }
+
+        for (int t = 0; t < m_slices.length; t++) {
+            PigpiojDevice[][] slices = m_slices[t];
+            if (slices.length == 0) continue;
+            // catch up on slices put off earlier while there is time, but never let one fall a
+            // whole period behind
+            while (m_sliceDue[t] <= cycle) {
+                if (System.nanoTime() - startNanos > budgetNanos && cycle - m_sliceDue[t] < slices.length) break;
+                if (m_sliceDue[t] < cycle) {
+                    stats.recordDeadlineMiss(kTiers[t]);
+                }
+                service.run(slices[m_nextSlice[t]]);
+                m_nextSlice[t] = (m_nextSlice[t] + 1) % slices.length;
+                m_sliceDue[t]++;
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package frc.lib.robopilink;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Has robopilinkd count quadrature encoders on the Pi, and collects the counts it sends back.
+ *
+ * <p>robopilinkd decodes every edge on the Pi and sends one line per period with the change in count,
+ * the period per count and the missed counts of each encoder that moved, so a fast encoder costs one
+ * batch per period on the network instead of a notification per edge. The line protocol runs on its
+ * own socket to robopilinkd, next to the {@link Failsafe}'s.
+ */
+class EncoderCounter implements AutoCloseable {
+    interface Listener {
+        /**
+         * Called on the reader thread for every batch the encoder moved in.
+         *
+         * @param periodUs time per count over the last few edges, negative when counting down, or 0
+         *     if not known yet
+         */
+        void counted(long delta, int periodUs, long errors);
+    }
+
+    private static final int kConnectTimeoutMillis = 1000;
+
+    private final Socket m_socket;
+    private final OutputStream m_out;
+    // indexed by the id robopilinkd reports them under; replaced, never changed
+    private volatile Listener[] m_listeners = new Listener[0];
+
+    /**
+     * Connects to robopilinkd and starts listening for counts.
+     *
+     * @param periodMillis time between batches
+     * @param onFailure called on the reader thread if the connection to robopilinkd fails
+     */
+    EncoderCounter(String host, int port, int periodMillis, Consumer<IOException> onFailure) throws IOException {
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), kConnectTimeoutMillis);
+        BufferedReader in;
+        try {
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            m_out = socket.getOutputStream();
+            m_out.write(("encoders " + periodMillis + "\n").getBytes(StandardCharsets.US_ASCII));
+            m_out.flush();
+            socket.setSoTimeout(kConnectTimeoutMillis);
+            String reply = in.readLine();
+            if (!"ok".equals(reply)) {
+                throw new IOException("robopilinkd cannot count encoders: " + reply);
+            }
+            socket.setSoTimeout(0);
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+        m_socket = socket;
+
+        Thread reader = new Thread(() -> readCounts(in, onFailure), "RoboPiLink encoders");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Starts counting an encoder on {@code portA} and {@code portB}, which must already be inputs.
+     */
+    synchronized void watch(int portA, int portB, Listener listener) throws IOException {
+        Listener[] listeners = Arrays.copyOf(m_listeners, m_listeners.length + 1);
+        int id = listeners.length - 1;
+        listeners[id] = listener;
+        m_listeners = listeners;
+        m_out.write(("watch " + id + " " + portA + " " + portB + "\n").getBytes(StandardCharsets.US_ASCII));
+        m_out.flush();
+    }
+
+    private void readCounts(BufferedReader in, Consumer<IOException> onFailure) {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields[0].equals("error")) {
+                    throw new IOException("robopilinkd rejected an encoder: " + line);
+                }
+                if (!fields[0].equals("counts")) continue;
+                Listener[] listeners = m_listeners;
+                for (int n = 1; n + 3 < fields.length; n += 4) {
+                    int id = Integer.parseInt(fields[n]);
+                    if (id < listeners.length) {
+                        listeners[id].counted(Long.parseLong(fields[n + 1]), Integer.parseInt(fields[n + 2]),
+                            Long.parseLong(fields[n + 3]));
+                    }
+                }
+            }
+            throw new IOException("robopilinkd closed the encoder connection");
+        } catch (IOException | RuntimeException e) {
+            if (!m_socket.isClosed()) {
+                onFailure.accept(e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+        }
+    }
+
+    /**
+     * Stops counting. robopilinkd forgets the encoders.
+     */
+    @Override
+    public void close() throws IOException {
+        m_socket.close();
+    }
+}
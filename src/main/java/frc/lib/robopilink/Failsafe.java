@@ -0,0 +1,215 @@
+package frc.lib.robopilink;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Configures what robopilinkd does to the pins when the heartbeat stops, and collects its reports of
+ * doing so.
+ *
+ * <p>Every pin the robot program claimed is put in a safe state when the watchdog trips: back to an
+ * input by default, or driven low, or held at servo neutral. robopilinkd applies low pins with one
+ * bank clear per bank and stops every servo group waveform at once before going through the pins
+ * that need their own command, and reports how long that took from the watchdog firing. The total
+ * time from the last heartbeat to safe pins is the timeout plus that latency.
+ *
+ * <p>The configuration is sent over a small line protocol on its own socket to robopilinkd, which
+ * keeps it until the next program connects. Trips that happen while nobody is connected are
+ * reported on the next connection, ahead of its acknowledgement, and only go into the statistics:
+ * the pins have been restored by then.
+ */
+public class Failsafe implements AutoCloseable {
+    public static final int kDefaultPort = 8889;
+    // heartbeats only go out when the loop runs, so a shorter timeout trips on a late cycle or a
+    // garbage collection pause rather than on a stopped program
+    public static final double kMinTimeoutSeconds = 0.1;
+    public static final double kDefaultTimeoutSeconds = 0.1;
+
+    public enum SafeState {
+        /** Switch the pin to an input with no pull, so it floats. */
+        INPUT,
+        /** Drive the pin low, stopping any PWM on it. */
+        LOW,
+        /** Keep sending 1500 us servo pulses, which stops most motor controllers. */
+        SERVO_NEUTRAL,
+    }
+
+    private static final int kConnectTimeoutMillis = 1000;
+
+    private final String m_host;
+    private final int m_port;
+    private final SafeState[] m_safeStates = new SafeState[PinRegistry.kPinCount];
+    private volatile double m_timeoutSeconds = kDefaultTimeoutSeconds;
+
+    private final Histogram m_tripLatency = new Histogram();
+    private volatile long m_lastTripLatencyNanos = 0;
+
+    // null when closed; a reader whose socket is no longer this one was closed on purpose
+    private volatile Socket m_socket;
+
+    public Failsafe(String host) {
+        this(host, kDefaultPort);
+    }
+
+    /**
+     * @param host hostname of the Pi running robopilinkd
+     * @param port port robopilinkd listens on for its configuration
+     */
+    public Failsafe(String host, int port) {
+        m_host = host;
+        m_port = port;
+    }
+
+    /**
+     * Sets how long without a heartbeat before the pins are made safe. The heartbeat's adaptive
+     * timeout never goes above this. It must be at least {@link #kMinTimeoutSeconds}, and
+     * {@link RoboPiLink#enableFailsafe(Failsafe)} also wants room for
+     * {@link Heartbeat#kBeatsPerTimeout} cycles of the loop that sends the heartbeats.
+     */
+    public void setTimeout(double seconds) {
+        if (seconds < kMinTimeoutSeconds || seconds > 60) {
+            throw new IllegalArgumentException("failsafe timeout must be between " + (int) (kMinTimeoutSeconds * 1000)
+                + " ms and 60 s, got " + seconds);
+        }
+        m_timeoutSeconds = seconds;
+    }
+
+    public double getTimeoutSeconds() {
+        return m_timeoutSeconds;
+    }
+
+    /**
+     * Sets the state {@code port} is put in when the failsafe trips. Claimed pins without one are made
+     * inputs.
+     */
+    public synchronized void setSafeState(int port, SafeState state) {
+        if (port < 0 || port >= PinRegistry.kPinCount) {
+            throw new RuntimeException("port " + port + " does not exist on RPi");
+        }
+        m_safeStates[port] = state;
+    }
+
+    public synchronized SafeState getSafeState(int port) {
+        SafeState state = m_safeStates[port];
+        return state == null ? SafeState.INPUT : state;
+    }
+
+    /**
+     * Gets the time robopilinkd took to make the pins safe after each trip, in nanoseconds, measured
+     * on the Pi from the watchdog firing.
+     */
+    public Histogram getTripLatency() {
+        return m_tripLatency;
+    }
+
+    public long getTripCount() {
+        return m_tripLatency.getCount();
+    }
+
+    public double getLastTripLatencySeconds() {
+        return m_lastTripLatencyNanos / 1e9;
+    }
+
+    /**
+     * Sends the configuration to robopilinkd and starts listening for trip reports.
+     *
+     * @param pingPin pin the heartbeat toggles, which is left alone
+     * @param claimedMask pins to make safe, in addition to any given a safe state explicitly
+     * @param onTrip called on the reader thread with the latency of each reported trip, in nanoseconds
+     * @param onFailure called on the reader thread if the connection to robopilinkd fails
+     */
+    synchronized void connect(int pingPin, long claimedMask, Consumer<Long> onTrip, Consumer<IOException> onFailure) throws IOException {
+        long inputMask = 0;
+        long lowMask = 0;
+        long servoMask = 0;
+        for (int port = 0; port < PinRegistry.kPinCount; port++) {
+            if (port == pingPin) continue;
+            long bit = 1L << port;
+            SafeState state = m_safeStates[port];
+            if (state == null && (claimedMask & bit) == 0) continue;
+            switch (state == null ? SafeState.INPUT : state) {
+                case INPUT: inputMask |= bit; break;
+                case LOW: lowMask |= bit; break;
+                case SERVO_NEUTRAL: servoMask |= bit; break;
+            }
+        }
+
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(m_host, m_port), kConnectTimeoutMillis);
+        BufferedReader in;
+        try {
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream out = socket.getOutputStream();
+            String config = "config " + pingPin + " " + Math.round(m_timeoutSeconds * 1000) + " "
+                + Long.toUnsignedString(inputMask) + " " + Long.toUnsignedString(lowMask) + " "
+                + Long.toUnsignedString(servoMask) + "\n";
+            out.write(config.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            socket.setSoTimeout(kConnectTimeoutMillis);
+            String reply;
+            while ((reply = in.readLine()) != null && recordTrip(reply) >= 0) {}
+            if (!"ok".equals(reply)) {
+                throw new IOException("robopilinkd rejected the failsafe configuration: " + reply);
+            }
+            socket.setSoTimeout(0);
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+        m_socket = socket;
+
+        Thread reader = new Thread(() -> readReports(socket, in, onTrip, onFailure), "RoboPiLink failsafe");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readReports(Socket socket, BufferedReader in, Consumer<Long> onTrip, Consumer<IOException> onFailure) {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                long latencyNanos = recordTrip(line);
+                if (latencyNanos >= 0) {
+                    onTrip.accept(latencyNanos);
+                }
+            }
+            throw new IOException("robopilinkd closed the failsafe connection");
+        } catch (IOException | NumberFormatException e) {
+            if (m_socket == socket) {
+                onFailure.accept(e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+        }
+    }
+
+    /**
+     * Records a {@code trip <latency us>} report.
+     *
+     * @return the latency in nanoseconds, or -1 if the line is not a trip report
+     */
+    private long recordTrip(String line) {
+        String[] fields = line.split(" ");
+        if (fields.length < 2 || !fields[0].equals("trip")) return -1;
+        long latencyNanos = Long.parseLong(fields[1]) * 1000;
+        m_tripLatency.record(latencyNanos);
+        m_lastTripLatencyNanos = latencyNanos;
+        return latencyNanos;
+    }
+
+    /**
+     * Stops listening for trip reports. robopilinkd keeps the configuration and stays armed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        Socket socket = m_socket;
+        m_socket = null;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+}
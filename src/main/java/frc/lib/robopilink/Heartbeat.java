@@ -0,0 +1,130 @@
+package frc.lib.robopilink;
+
+/**
+ * Measures the round trip time of heartbeat pings to the Pi and picks the heartbeat interval and
+ * watchdog timeout from it.
+ *
+ * <p>The round trip time is smoothed the way TCP does for its retransmission timeout: a moving
+ * average plus four times the moving mean deviation. The watchdog on the Pi gets
+ * {@link #kBeatsPerTimeout} times that, clamped to the configured limits, and a heartbeat is sent
+ * {@link #kBeatsPerTimeout} times per timeout, so several pings in a row have to be lost or late
+ * before the Pi cuts its pins. A worse link raises the timeout right away; a better one only lowers
+ * it once per {@link #kTightenPeriodSeconds}.
+ *
+ * <p>Round trips are recorded by the command runner only.
+ */
+public class Heartbeat {
+    public static final int kBeatsPerTimeout = 4;
+    public static final double kDefaultMinTimeoutSeconds = 0.1;
+    public static final double kDefaultMaxTimeoutSeconds = 0.5;
+    public static final double kTightenPeriodSeconds = 1.0;
+
+    // only resend the watchdog timeout if it moved by at least this much
+    private static final int kTimeoutHysteresisMillis = 10;
+
+    private final Histogram m_rtt = new Histogram();
+
+    private volatile int m_minTimeoutMillis = (int) (kDefaultMinTimeoutSeconds * 1000);
+    private volatile int m_maxTimeoutMillis = (int) (kDefaultMaxTimeoutSeconds * 1000);
+
+    private volatile long m_smoothedRttNanos = 0;
+    private volatile long m_rttVariationNanos = 0;
+    private volatile long m_lastRttNanos = 0;
+
+    private volatile int m_timeoutMillis = (int) (kDefaultMaxTimeoutSeconds * 1000);
+    // -1 until the current connection has been sent a timeout
+    private volatile int m_appliedTimeoutMillis = -1;
+    private long m_lastTightenNanos = 0;
+
+    /**
+     * Limits the watchdog timeout. A lower minimum trips faster on a good link but also on a long
+     * garbage collection pause.
+     */
+    public void setTimeoutLimits(double minSeconds, double maxSeconds) {
+        if (minSeconds <= 0 || maxSeconds < minSeconds) {
+            throw new IllegalArgumentException("invalid watchdog limits " + minSeconds + " to " + maxSeconds);
+        }
+        m_minTimeoutMillis = (int) (minSeconds * 1000);
+        m_maxTimeoutMillis = (int) (maxSeconds * 1000);
+        m_timeoutMillis = clampTimeout(m_timeoutMillis);
+    }
+
+    void record(long rttNanos) {
+        m_rtt.record(rttNanos);
+        m_lastRttNanos = rttNanos;
+        if (m_rtt.getCount() == 1) {
+            m_smoothedRttNanos = rttNanos;
+            m_rttVariationNanos = rttNanos / 2;
+        } else {
+            long error = rttNanos - m_smoothedRttNanos;
+            m_rttVariationNanos += (Math.abs(error) - m_rttVariationNanos) / 4;
+            m_smoothedRttNanos += error / 8;
+        }
+
+        long retransmitNanos = m_smoothedRttNanos + 4 * m_rttVariationNanos;
+        int wanted = clampTimeout((int) (kBeatsPerTimeout * retransmitNanos / 1_000_000));
+        long now = System.nanoTime();
+        if (wanted > m_timeoutMillis) {
+            m_timeoutMillis = wanted;
+        } else if (wanted < m_timeoutMillis && now - m_lastTightenNanos >= (long) (kTightenPeriodSeconds * 1e9)) {
+            m_timeoutMillis = wanted;
+            m_lastTightenNanos = now;
+        }
+    }
+
+    /**
+     * Gets the timeout to send to the Pi if it differs enough from the one it has, or -1.
+     */
+    int takeTimeoutUpdate() {
+        int timeout = m_timeoutMillis;
+        int applied = m_appliedTimeoutMillis;
+        if (applied >= 0 && Math.abs(timeout - applied) < kTimeoutHysteresisMillis) return -1;
+        m_appliedTimeoutMillis = timeout;
+        return timeout;
+    }
+
+    /**
+     * Forgets which timeout the Pi has, for example after reconnecting to a restarted pigpiod.
+     */
+    void resetApplied() {
+        m_appliedTimeoutMillis = -1;
+    }
+
+    private int clampTimeout(int millis) {
+        return Math.max(m_minTimeoutMillis, Math.min(m_maxTimeoutMillis, millis));
+    }
+
+    long getIntervalNanos() {
+        return m_timeoutMillis * 1_000_000L / kBeatsPerTimeout;
+    }
+
+    public double getIntervalSeconds() {
+        return getIntervalNanos() / 1e9;
+    }
+
+    /**
+     * Gets the watchdog timeout the Pi should be using.
+     */
+    public double getTimeoutSeconds() {
+        return m_timeoutMillis / 1000.0;
+    }
+
+    public double getLastRttSeconds() {
+        return m_lastRttNanos / 1e9;
+    }
+
+    public double getSmoothedRttSeconds() {
+        return m_smoothedRttNanos / 1e9;
+    }
+
+    public double getRttVariationSeconds() {
+        return m_rttVariationNanos / 1e9;
+    }
+
+    /**
+     * Gets every measured round trip, in nanoseconds.
+     */
+    public Histogram getRtt() {
+        return m_rtt;
+    }
+}
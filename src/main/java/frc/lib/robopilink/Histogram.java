@@ -0,0 +1,94 @@
+package frc.lib.robopilink;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, allocation free histogram of non-negative values such as latencies in nanoseconds.
+ *
+ * <p>Buckets are log-linear: every power of two is split into four buckets, so any value is
+ * reported to within 25%. Recording is meant for a single thread while any thread reads; counts are
+ * kept in an {@link AtomicLongArray} so reads never see a torn long on 32 bit Pis.
+ */
+public class Histogram {
+    private static final int kSubBucketBits = 2;
+    private static final int kSubBuckets = 1 << kSubBucketBits;
+    private static final int kBucketCount = (64 - kSubBucketBits) << kSubBucketBits;
+
+    private static final int kCount = 0;
+    private static final int kSum = 1;
+    private static final int kMax = 2;
+
+    private final AtomicLongArray m_buckets = new AtomicLongArray(kBucketCount);
+    private final AtomicLongArray m_totals = new AtomicLongArray(3);
+
+    /**
+     * Records a value. Only one thread should record into a given histogram.
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        int bucket = bucketOf(value);
+        m_buckets.lazySet(bucket, m_buckets.get(bucket) + 1);
+        m_totals.lazySet(kCount, m_totals.get(kCount) + 1);
+        m_totals.lazySet(kSum, m_totals.get(kSum) + value);
+        if (value > m_totals.get(kMax)) {
+            m_totals.lazySet(kMax, value);
+        }
+    }
+
+    public long getCount() {
+        return m_totals.get(kCount);
+    }
+
+    public long getMax() {
+        return m_totals.get(kMax);
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0.0 : (double) m_totals.get(kSum) / count;
+    }
+
+    /**
+     * Gets an upper bound for the value below which {@code fraction} of the recorded values fall,
+     * e.g. 0.99 for p99.
+     */
+    public long getPercentile(double fraction) {
+        long count = getCount();
+        if (count == 0) return 0;
+        long target = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int bucket = 0; bucket < kBucketCount; bucket++) {
+            seen += m_buckets.get(bucket);
+            if (seen >= target) {
+                return Math.min(upperBoundOf(bucket), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Clears every bucket. Values recorded while the reset runs may be partly lost.
+     */
+    public void reset() {
+        for (int bucket = 0; bucket < kBucketCount; bucket++) {
+            m_buckets.set(bucket, 0);
+        }
+        for (int total = 0; total < 3; total++) {
+            m_totals.set(total, 0);
+        }
+    }
+
+    private static int bucketOf(long value) {
+        if (value < kSubBuckets) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - kSubBucketBits)) & (kSubBuckets - 1);
+        return ((exponent - kSubBucketBits + 1) << kSubBucketBits) | subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < kSubBuckets) return bucket;
+        int exponent = (bucket >>> kSubBucketBits) + kSubBucketBits - 1;
+        long lower = (long) (kSubBuckets | (bucket & (kSubBuckets - 1))) << (exponent - kSubBucketBits);
+        return lower + (1L << (exponent - kSubBucketBits)) - 1;
+    }
+}
@@ -0,0 +1,118 @@
+package frc.lib.robopilink;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces a loop at a fixed rate using the monotonic {@link System#nanoTime()} clock.
+ *
+ * <p>Deadlines are scheduled from the first cycle rather than from the end of the previous one,
+ * so a short overrun is caught up over the following cycles. If the loop falls more than
+ * {@code maxCatchUpCycles} periods behind, the missed deadlines are dropped instead of being run
+ * back to back.
+ *
+ * <p>Jitter is the time between a cycle's deadline and the moment the loop actually woke up for it.
+ */
+public class LoopTimer {
+    private final long m_periodNanos;
+    private final int m_maxCatchUpCycles;
+
+    private long m_nextDeadline = 0;
+
+    private volatile long m_cycleCount = 0;
+    private volatile long m_overrunCount = 0;
+    private volatile long m_skippedCycles = 0;
+    private volatile long m_lastJitterNanos = 0;
+    private volatile long m_maxJitterNanos = 0;
+    private volatile long m_totalJitterNanos = 0;
+
+    public LoopTimer(double periodSeconds) {
+        this(periodSeconds, 5);
+    }
+
+    public LoopTimer(double periodSeconds, int maxCatchUpCycles) {
+        if (periodSeconds <= 0) {
+            throw new IllegalArgumentException("loop period must be positive, got " + periodSeconds);
+        }
+        m_periodNanos = (long) (periodSeconds * 1e9);
+        m_maxCatchUpCycles = maxCatchUpCycles;
+    }
+
+    /**
+     * Blocks until the next cycle's deadline and records how late the wakeup was.
+     */
+    public void waitForNextCycle() {
+        long now = System.nanoTime();
+        if (m_nextDeadline == 0) {
+            m_nextDeadline = now;
+        }
+
+        if (now > m_nextDeadline) {
+            m_overrunCount++;
+        } else {
+            while (now < m_nextDeadline) {
+                LockSupport.parkNanos(m_nextDeadline - now);
+                now = System.nanoTime();
+            }
+        }
+
+        long jitter = now - m_nextDeadline;
+        m_lastJitterNanos = jitter;
+        m_totalJitterNanos += jitter;
+        if (jitter > m_maxJitterNanos) {
+            m_maxJitterNanos = jitter;
+        }
+        m_cycleCount++;
+
+        m_nextDeadline += m_periodNanos;
+        long behind = now - m_nextDeadline;
+        if (behind > m_maxCatchUpCycles * m_periodNanos) {
+            long missed = behind / m_periodNanos;
+            m_nextDeadline += missed * m_periodNanos;
+            m_skippedCycles += missed;
+        }
+    }
+
+    public double getPeriodSeconds() {
+        return m_periodNanos / 1e9;
+    }
+
+    public long getPeriodNanos() {
+        return m_periodNanos;
+    }
+
+    public long getCycleCount() {
+        return m_cycleCount;
+    }
+
+    /** Number of cycles that started after their deadline had already passed. */
+    public long getOverrunCount() {
+        return m_overrunCount;
+    }
+
+    /** Number of deadlines dropped because the loop fell too far behind to catch up. */
+    public long getSkippedCycles() {
+        return m_skippedCycles;
+    }
+
+    public double getLastJitterSeconds() {
+        return m_lastJitterNanos / 1e9;
+    }
+
+    public double getMaxJitterSeconds() {
+        return m_maxJitterNanos / 1e9;
+    }
+
+    public double getMeanJitterSeconds() {
+        long cycles = m_cycleCount;
+        return cycles == 0 ? 0.0 : m_totalJitterNanos / 1e9 / cycles;
+    }
+
+    public void resetStats() {
+        m_cycleCount = 0;
+        m_overrunCount = 0;
+        m_skippedCycles = 0;
+        m_lastJitterNanos = 0;
+        m_maxJitterNanos = 0;
+        m_totalJitterNanos = 0;
+    }
+}
@@ -0,0 +1,32 @@
+package frc.lib.robopilink;
+
+import java.io.IOException;
+
+/**
+ * pigpiod answered a command with an error, such as a pulse width or duty cycle out of range. The
+ * connection itself is fine: every response of the batch was read, and the other commands in it ran.
+ */
+public class PigpioCommandException extends IOException {
+    private final int m_command;
+    private final int m_result;
+
+    PigpioCommandException(int command, int result) {
+        super("pigpio command " + command + " failed with error " + result);
+        m_command = command;
+        m_result = result;
+    }
+
+    /**
+     * Gets the first command of the batch that failed.
+     */
+    public int getCommand() {
+        return m_command;
+    }
+
+    /**
+     * Gets the pigpio error code it returned.
+     */
+    public int getResult() {
+        return m_result;
+    }
+}
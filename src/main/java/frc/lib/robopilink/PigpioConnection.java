@@ -0,0 +1,290 @@
+package frc.lib.robopilink;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.diozero.api.GpioPullUpDown;
+
+/**
+ * A raw connection to the pigpiod socket interface.
+ *
+ * <p>diozero only exposes pigpio one pin at a time, so this speaks the pigpiod wire protocol directly
+ * for the operations that cover many pins at once. Every request is 16 bytes (command, p1, p2, p3)
+ * and every response is 16 bytes with the result in the last word, all little endian.
+ *
+ * <p>Commands can be queued with {@link #queue(int, int, int)} and sent together with
+ * {@link #flush()}, which writes them in one packet and then reads all the responses, so the whole
+ * batch costs a single round trip.
+ */
+public class PigpioConnection implements AutoCloseable {
+    public static final int kDefaultPort = 8888;
+
+    static final int CMD_MODES = 0;
+    static final int CMD_MODEG = 1;
+    static final int CMD_PUD = 2;
+    static final int CMD_READ = 3;
+    static final int CMD_WRITE = 4;
+    static final int CMD_PWM = 5;
+    static final int CMD_PRS = 6;
+    static final int CMD_PFS = 7;
+    static final int CMD_SERVO = 8;
+    static final int CMD_WDOG = 9;
+    static final int CMD_BR1 = 10;
+    static final int CMD_BR2 = 11;
+    static final int CMD_BC1 = 12;
+    static final int CMD_BC2 = 13;
+    static final int CMD_BS1 = 14;
+    static final int CMD_BS2 = 15;
+    static final int CMD_TICK = 16;
+    static final int CMD_HWVER = 17;
+    static final int CMD_NB = 19;
+    static final int CMD_NP = 20;
+    static final int CMD_NC = 21;
+    static final int CMD_PRG = 22;
+    static final int CMD_PFG = 23;
+    static final int CMD_PRRG = 24;
+    static final int CMD_PIGPV = 26;
+    static final int CMD_WVCLR = 27;
+    static final int CMD_WVAG = 28;
+    static final int CMD_WVCRE = 49;
+    static final int CMD_WVDEL = 50;
+    static final int CMD_WVTXR = 52;
+    static final int CMD_GDC = 83;
+    static final int CMD_GPW = 84;
+    static final int CMD_FG = 97;
+    static final int CMD_FN = 98;
+    static final int CMD_NOIB = 99;
+    static final int CMD_WVTXM = 100;
+
+    static final int PI_BAD_HANDLE = -25;
+
+    private static final int kMessageSize = 16;
+    static final int kMaxBatch = 64;
+    private static final int kConnectTimeoutMs = 2000;
+    // twice the longest default watchdog timeout: by the time a response is this late the Pi has
+    // cut its pins, so a socket that went quiet without closing counts as a lost connection
+    static final int kReadTimeoutMs = (int) (2 * Heartbeat.kDefaultMaxTimeoutSeconds * 1000);
+    // pigpio error codes are small negative numbers; anything lower is an unsigned result
+    // such as a bank read with pin 31 high
+    private static final int kLowestErrorCode = -4000;
+
+    private final String m_host;
+    private final int m_port;
+    private final Socket m_socket;
+    private final OutputStream m_out;
+    private final DataInputStream m_in;
+
+    private ByteBuffer m_batch = ByteBuffer.allocate(kMessageSize * kMaxBatch).order(ByteOrder.LITTLE_ENDIAN);
+    private final byte[] m_response = new byte[kMessageSize];
+    private int m_batchCount = 0;
+    private final int[] m_results = new int[kMaxBatch];
+    private int m_resultCount = 0;
+    private int m_flushCount = 0;
+    private final int[] m_filterExtension = new int[1];
+
+    public PigpioConnection(String host, int port) throws IOException {
+        m_host = host;
+        m_port = port;
+        m_socket = new Socket();
+        m_socket.setTcpNoDelay(true);
+        m_socket.connect(new InetSocketAddress(host, port), kConnectTimeoutMs);
+        m_socket.setSoTimeout(kReadTimeoutMs);
+        m_out = m_socket.getOutputStream();
+        m_in = new DataInputStream(m_socket.getInputStream());
+    }
+
+    /**
+     * Sends a single command and waits for its result. Any queued commands are sent first.
+     */
+    public synchronized int command(int cmd, int p1, int p2) throws IOException {
+        queue(cmd, p1, p2);
+        return flush();
+    }
+
+    /**
+     * Adds a command to the current batch without sending it.
+     */
+    public synchronized void queue(int cmd, int p1, int p2) throws IOException {
+        if (m_batchCount == kMaxBatch) {
+            flush();
+        }
+        m_batch.putInt(cmd).putInt(p1).putInt(p2).putInt(0);
+        m_batchCount++;
+    }
+
+    /**
+     * Adds a command with an extension, such as the pulses of a waveform, to the current batch.
+     *
+     * @param extension words sent after the command, little endian
+     * @param length number of words of {@code extension} to send
+     */
+    public synchronized void queue(int cmd, int p1, int p2, int[] extension, int length) throws IOException {
+        int size = kMessageSize + length * 4;
+        if (m_batchCount == kMaxBatch || m_batch.remaining() < size) {
+            flush();
+        }
+        if (m_batch.capacity() < size) {
+            m_batch = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        m_batch.putInt(cmd).putInt(p1).putInt(p2).putInt(length * 4);
+        for (int n = 0; n < length; n++) {
+            m_batch.putInt(extension[n]);
+        }
+        m_batchCount++;
+    }
+
+    /**
+     * Sends every queued command in one write and reads all of their responses.
+     *
+     * @return the result of the last command in the batch
+     * @throws IOException if the socket fails, pigpiod does not answer within
+     *     {@link #kReadTimeoutMs}, which closes the connection
+     * @throws PigpioCommandException if pigpio rejects any command in the batch, once every
+     *     response has been read
+     */
+    public synchronized int flush() throws IOException {
+        if (m_batchCount == 0) return 0;
+
+        int count = m_batchCount;
+        m_batchCount = 0;
+        m_flushCount++;
+        try {
+            m_out.write(m_batch.array(), 0, m_batch.position());
+            m_out.flush();
+        } finally {
+            m_batch.clear();
+        }
+
+        int failedCmd = 0;
+        int failedResult = 0;
+        int result = 0;
+        m_resultCount = 0;
+        for (int n = 0; n < count; n++) {
+            try {
+                m_in.readFully(m_response);
+            } catch (SocketTimeoutException e) {
+                // the rest of the responses may still arrive and would be taken for later ones
+                m_socket.close();
+                throw new IOException("pigpiod did not answer within " + kReadTimeoutMs + " ms", e);
+            }
+            result = readInt(m_response, 12);
+            m_results[m_resultCount++] = result;
+            if (isError(result) && failedResult == 0) {
+                failedCmd = readInt(m_response, 0);
+                failedResult = result;
+            }
+        }
+        if (failedResult != 0) {
+            throw new PigpioCommandException(failedCmd, failedResult);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the number of commands queued for the next batch.
+     */
+    public synchronized int getQueuedCount() {
+        return m_batchCount;
+    }
+
+    /**
+     * Gets the result of the {@code n}th command of the last batch sent. A batch that grew past its
+     * limit was sent in parts, and only the last part is kept.
+     */
+    public synchronized int getResult(int n) {
+        if (n < 0 || n >= m_resultCount) {
+            throw new IndexOutOfBoundsException("batch had " + m_resultCount + " results, asked for " + n);
+        }
+        return m_results[n];
+    }
+
+    public synchronized int getResultCount() {
+        return m_resultCount;
+    }
+
+    /**
+     * Gets the number of batches sent so far, including ones sent because a batch was full. Results
+     * can only be matched to commands queued since the count last changed.
+     */
+    public synchronized int getFlushCount() {
+        return m_flushCount;
+    }
+
+    /**
+     * Queues the bank operations needed to drive every pin in the set masks high and every pin in
+     * the clear masks low. Bank 1 covers pins 0-31 and bank 2 covers pins 32-53.
+     */
+    public synchronized void queueBankWrite(int set1, int clear1, int set2, int clear2) throws IOException {
+        if (set1 != 0) queue(CMD_BS1, set1, 0);
+        if (clear1 != 0) queue(CMD_BC1, clear1, 0);
+        if (set2 != 0) queue(CMD_BS2, set2, 0);
+        if (clear2 != 0) queue(CMD_BC2, clear2, 0);
+    }
+
+    /**
+     * Queues the commands that make {@code port} an input with the given pull resistor.
+     */
+    public synchronized void queueInputSetup(int port, GpioPullUpDown pullUpDown) throws IOException {
+        queue(CMD_MODES, port, 0);
+        int pud = pullUpDown == GpioPullUpDown.PULL_UP ? 2 : pullUpDown == GpioPullUpDown.PULL_DOWN ? 1 : 0;
+        queue(CMD_PUD, port, pud);
+    }
+
+    /**
+     * Queues the glitch and noise filters pigpiod applies to a pin's notifications, in microseconds.
+     * Only pins 0-31 can be filtered; zero turns a filter off.
+     */
+    public synchronized void queueInputFilter(int port, int glitchMicros, int noiseSteadyMicros, int noiseActiveMicros) throws IOException {
+        queue(CMD_FG, port, glitchMicros);
+        m_filterExtension[0] = noiseActiveMicros;
+        queue(CMD_FN, port, noiseSteadyMicros, m_filterExtension, 1);
+    }
+
+    /**
+     * Reads the levels of pins 0-31 as a bit mask.
+     */
+    public int readBank1() throws IOException {
+        return command(CMD_BR1, 0, 0);
+    }
+
+    /**
+     * Reads the levels of pins 0-53 as a bit mask, in one round trip. Any queued commands are sent
+     * first.
+     */
+    public synchronized long readBanks() throws IOException {
+        queue(CMD_BR1, 0, 0);
+        queue(CMD_BR2, 0, 0);
+        flush();
+        return Integer.toUnsignedLong(m_results[m_resultCount - 2]) | (long) m_results[m_resultCount - 1] << 32;
+    }
+
+    public String getHost() {
+        return m_host;
+    }
+
+    public int getPort() {
+        return m_port;
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_socket.close();
+    }
+
+    static boolean isError(int result) {
+        return result < 0 && result > kLowestErrorCode;
+    }
+
+    static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff)
+            | (bytes[offset + 1] & 0xff) << 8
+            | (bytes[offset + 2] & 0xff) << 16
+            | (bytes[offset + 3] & 0xff) << 24;
+    }
+}
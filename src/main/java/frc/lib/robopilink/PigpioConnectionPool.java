@@ -0,0 +1,177 @@
+package frc.lib.robopilink;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A few extra connections to pigpiod, one per lane, so independent parts of a cycle's I/O can be on
+ * the network at the same time instead of queueing behind each other on one socket.
+ *
+ * <p>Each lane has its own connection and worker thread. A task is started on a lane with
+ * {@link #start(int, Task)} and the caller carries on with its own I/O, then waits for the lane at
+ * {@link #await(int, long)}, so a cycle costs the slowest lane's round trips rather than the sum of
+ * all of them. Lanes can also be used directly from the calling thread through
+ * {@link #getConnection(int)}. With fewer connections than lanes, lanes share connections and
+ * their commands take turns.
+ */
+public class PigpioConnectionPool implements AutoCloseable {
+    public interface Task {
+        void run(PigpioConnection pigpio) throws IOException;
+    }
+
+    private final String m_host;
+    private final int m_port;
+    private final Lane[] m_lanes;
+    private volatile PigpioConnection[] m_connections;
+
+    /**
+     * @param size number of connections, shared round robin between {@code lanes}
+     */
+    public PigpioConnectionPool(String host, int port, int size, int lanes) throws IOException {
+        if (size < 1) {
+            throw new IllegalArgumentException("connection pool needs at least one connection, got " + size);
+        }
+        m_host = host;
+        m_port = port;
+        m_connections = open(size);
+        m_lanes = new Lane[lanes];
+        for (int n = 0; n < lanes; n++) {
+            m_lanes[n] = new Lane(n);
+        }
+    }
+
+    private PigpioConnection[] open(int size) throws IOException {
+        PigpioConnection[] connections = new PigpioConnection[size];
+        try {
+            for (int n = 0; n < size; n++) {
+                connections[n] = new PigpioConnection(m_host, m_port);
+            }
+        } catch (IOException e) {
+            closeAll(connections);
+            throw e;
+        }
+        return connections;
+    }
+
+    public int getSize() {
+        return m_connections.length;
+    }
+
+    /**
+     * Gets the connection of a lane, for I/O on the calling thread.
+     */
+    public PigpioConnection getConnection(int lane) {
+        PigpioConnection[] connections = m_connections;
+        return connections[lane % connections.length];
+    }
+
+    /**
+     * Starts {@code task} on the lane's worker.
+     *
+     * @return false if the lane is still busy with an earlier task, which is left to finish
+     */
+    boolean start(int lane, Task task) {
+        return m_lanes[lane].start(task);
+    }
+
+    /**
+     * Waits for the lane's task to finish.
+     *
+     * @return false if the timeout passed first
+     * @throws IOException if the task failed
+     */
+    boolean await(int lane, long timeoutNanos) throws IOException {
+        return m_lanes[lane].await(timeoutNanos);
+    }
+
+    /**
+     * Replaces every connection after the link to the Pi was lost. Lanes must be idle.
+     */
+    synchronized void reconnect() throws IOException {
+        closeAll(m_connections);
+        m_connections = open(m_connections.length);
+    }
+
+    @Override
+    public synchronized void close() {
+        closeAll(m_connections);
+    }
+
+    private static void closeAll(PigpioConnection[] connections) {
+        for (PigpioConnection connection : connections) {
+            if (connection == null) continue;
+            try {
+                connection.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    private class Lane {
+        private final int m_index;
+        private final Thread m_thread;
+        private volatile Task m_task;
+        private volatile Thread m_waiter;
+        private volatile boolean m_busy = false;
+        private IOException m_error;
+
+        Lane(int index) {
+            m_index = index;
+            m_thread = new Thread(this::run, "RoboPiLink lane " + index);
+            m_thread.setDaemon(true);
+            m_thread.start();
+        }
+
+        boolean start(Task task) {
+            if (m_busy) return false;
+            m_error = null;
+            m_busy = true;
+            m_task = task;
+            LockSupport.unpark(m_thread);
+            return true;
+        }
+
+        boolean await(long timeoutNanos) throws IOException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            m_waiter = Thread.currentThread();
+            try {
+                while (m_busy) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) return false;
+                    LockSupport.parkNanos(this, remaining);
+                }
+            } finally {
+                m_waiter = null;
+            }
+            if (m_error != null) throw m_error;
+            return true;
+        }
+
+        private void run() {
+            while (true) {
+                Task task = m_task;
+                if (task == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                m_task = null;
+                PigpioConnection pigpio = getConnection(m_index);
+                // hold the connection for the whole task in case another lane shares it
+                synchronized (pigpio) {
+                    try {
+                        task.run(pigpio);
+                    } catch (IOException e) {
+                        m_error = e;
+                    } catch (RuntimeException e) {
+                        m_error = new IOException(e);
+                    }
+                }
+                // m_error is published by the volatile write
+                m_busy = false;
+                Thread waiter = m_waiter;
+                if (waiter != null) {
+                    LockSupport.unpark(waiter);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package frc.lib.robopilink;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+
+/**
+ * Receives pin level changes pushed from pigpiod over a notification socket.
+ *
+ * <p>A dedicated socket is switched into notification mode with NOIB, after which pigpiod streams a
+ * 12 byte report (sequence, flags, tick, levels) every time a watched pin changes. The reports are
+ * read on a background thread, so reading a watched pin never touches the network. Only pins 0-31
+ * can be watched, since each report only carries the bank 1 levels.
+ */
+public class PigpioNotifier implements AutoCloseable {
+    /**
+     * Receives every level change of the pins it was added for, on the notifier's reader thread.
+     */
+    public interface Listener {
+        /**
+         * @param tick pigpio tick of the change, in microseconds
+         * @param levels levels of pins 0-31 after the change
+         * @param changed the listener's pins that changed
+         */
+        void levelsChanged(int tick, int levels, int changed);
+    }
+
+    private static final int kReportSize = 12;
+    private static final int kFlagWatchdog = 1 << 5;
+    private static final int kFlagAlive = 1 << 6;
+    private static final int kFlagEvent = 1 << 7;
+
+    private final PigpioConnection m_pigpio;
+    private final Socket m_socket;
+    private final DataInputStream m_in;
+    private final int m_handle;
+    private final Consumer<IOException> m_onFailure;
+
+    private volatile int m_watchedBits = 0;
+    private volatile int m_levels = 0;
+    private final AtomicIntegerArray m_lastChangeTick = new AtomicIntegerArray(32);
+    private final AtomicIntegerArray m_edgeCount = new AtomicIntegerArray(32);
+
+    private volatile Listener[] m_listeners = new Listener[0];
+    private volatile int[] m_listenerBits = new int[0];
+
+    private volatile boolean m_closed = false;
+
+    /**
+     * Opens a notification socket to the same pigpiod as {@code pigpio}. Commands that control
+     * which pins are watched go over {@code pigpio}.
+     */
+    public PigpioNotifier(PigpioConnection pigpio) throws IOException {
+        this(pigpio, e -> e.printStackTrace());
+    }
+
+    /**
+     * @param onFailure called on the reader thread if the notification socket fails
+     */
+    public PigpioNotifier(PigpioConnection pigpio, Consumer<IOException> onFailure) throws IOException {
+        m_pigpio = pigpio;
+        m_onFailure = onFailure;
+        m_socket = new Socket();
+        m_socket.setTcpNoDelay(true);
+        m_socket.connect(new InetSocketAddress(pigpio.getHost(), pigpio.getPort()));
+        // pigpiod writes reports in bursts, so read them in bulk rather than one syscall each
+        m_in = new DataInputStream(new BufferedInputStream(m_socket.getInputStream()));
+
+        byte[] request = new byte[16];
+        request[0] = (byte) PigpioConnection.CMD_NOIB;
+        m_socket.getOutputStream().write(request);
+        byte[] response = new byte[16];
+        m_in.readFully(response);
+        m_handle = PigpioConnection.readInt(response, 12);
+        if (m_handle < 0) {
+            m_socket.close();
+            throw new IOException("pigpio could not open a notification handle, error " + m_handle);
+        }
+
+        Thread reader = new Thread(this::readReports, "RoboPiLink notifier");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Starts pushing changes of {@code port} to the JVM.
+     */
+    public synchronized void watch(int port) throws IOException {
+        if (port < 0 || port > 31) {
+            throw new IllegalArgumentException("only pins 0-31 can be watched, got " + port);
+        }
+        watchAll(1 << port);
+    }
+
+    /**
+     * Starts pushing changes of every pin in {@code bits}, for the cost of watching one.
+     */
+    public synchronized void watchAll(int bits) throws IOException {
+        if ((bits & ~m_watchedBits) == 0) return;
+        bits |= m_watchedBits;
+        // read the starting level, since only changes are reported from here on
+        m_levels = m_pigpio.readBank1();
+        m_pigpio.command(PigpioConnection.CMD_NB, m_handle, bits);
+        m_watchedBits = bits;
+    }
+
+    /**
+     * Calls {@code listener} for every change of the pins in {@code bits}, which must be watched.
+     */
+    public synchronized void addListener(int bits, Listener listener) {
+        int count = m_listeners.length;
+        Listener[] listeners = Arrays.copyOf(m_listeners, count + 1);
+        int[] listenerBits = Arrays.copyOf(m_listenerBits, count + 1);
+        listeners[count] = listener;
+        listenerBits[count] = bits;
+        m_listenerBits = listenerBits;
+        m_listeners = listeners;
+    }
+
+    public boolean isWatched(int port) {
+        return port >= 0 && port < 32 && (m_watchedBits & (1 << port)) != 0;
+    }
+
+    public boolean getLevel(int port) {
+        return (m_levels & (1 << port)) != 0;
+    }
+
+    /**
+     * Gets the pigpio tick, in microseconds since pigpiod started, of the last change on the pin.
+     * The tick wraps around roughly every 72 minutes.
+     */
+    public long getLastChangeTick(int port) {
+        return Integer.toUnsignedLong(m_lastChangeTick.get(port));
+    }
+
+    /**
+     * Gets the number of level changes seen on the pin, including ones too short for the main loop
+     * to ever observe.
+     */
+    public int getEdgeCount(int port) {
+        return m_edgeCount.get(port);
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_closed = true;
+        try {
+            m_pigpio.command(PigpioConnection.CMD_NC, m_handle, 0);
+        } finally {
+            m_socket.close();
+        }
+    }
+
+    private void readReports() {
+        byte[] report = new byte[kReportSize];
+        try {
+            while (!m_closed) {
+                m_in.readFully(report);
+                int flags = (report[2] & 0xff) | (report[3] & 0xff) << 8;
+                if ((flags & (kFlagWatchdog | kFlagAlive | kFlagEvent)) != 0) continue;
+
+                int tick = PigpioConnection.readInt(report, 4);
+                int levels = PigpioConnection.readInt(report, 8);
+                int changed = (levels ^ m_levels) & m_watchedBits;
+                m_levels = levels;
+
+                Listener[] listeners = m_listeners;
+                int[] listenerBits = m_listenerBits;
+                for (int n = 0; n < listeners.length; n++) {
+                    int bits = changed & listenerBits[n];
+                    if (bits != 0) {
+                        listeners[n].levelsChanged(tick, levels, bits);
+                    }
+                }
+
+                while (changed != 0) {
+                    int port = Integer.numberOfTrailingZeros(changed);
+                    changed &= changed - 1;
+                    m_lastChangeTick.set(port, tick);
+                    m_edgeCount.incrementAndGet(port);
+                }
+            }
+        } catch (IOException e) {
+            if (!m_closed) {
+                m_onFailure.accept(e);
+            }
+        }
+    }
+}
@@ -1,9 +1,86 @@
 package frc.lib.robopilink;
 
+import java.io.IOException;
+
+import com.diozero.internal.spi.BaseNativeDeviceFactory;
+
+/**
+ * A device serviced by the {@link RoboPiLink} main loop.
+ *
+ * The hooks are called directly from the loop every cycle, so implementations should keep their
+ * state in primitive fields and must not allocate when there is nothing to send.
+ */
 public interface PigpiojDevice {
     public int getPort();
-    public default Runnable getDisabledInit() {return () -> {};}
-    public default Runnable getDisabledPeriodic() {return () -> {};}
-    public default Runnable getEnabledInit() {return () -> {};}
-    public default Runnable getEnabledPeriodic() {return () -> {};}
+    public default void disabledInit() {}
+    public default void disabledPeriodic() {}
+    public default void enabledInit() {}
+    public default void enabledPeriodic() {}
+
+    /**
+     * Whether the device sends values to the Pi rather than reading them. Phase-locked cycles service
+     * outputs after robot code has run and every other device before it.
+     */
+    public default boolean isOutput() {return false;}
+
+    /**
+     * Gets how often the main loop should run the device's periodic hook, unless overridden with
+     * {@link RoboPiLink#setServiceTier(PigpiojDevice, ServiceTier)}.
+     */
+    public default ServiceTier getServiceTier() {return ServiceTier.FAST;}
+
+    /**
+     * Gets the value an output last sent to the Pi, for telemetry. Called from other threads.
+     */
+    public default double getSentValue() {return 0.0;}
+
+    /**
+     * Queues raw pigpio commands that set the device's pins up, so every device's setup goes to the
+     * Pi in one batch. Called before {@link #provision(BaseNativeDeviceFactory)}, and again before
+     * {@link #reconnect(BaseNativeDeviceFactory)}, when the link has a raw pigpiod connection.
+     *
+     * @return true if the device needs nothing more from diozero
+     */
+    public default boolean queueSetup(PigpioConnection pigpio) throws IOException {return false;}
+
+    /**
+     * Reads the results of the commands {@link #queueSetup(PigpioConnection)} queued, once the batch
+     * holding them has been sent, and may queue more. A device's setup commands always go out in the
+     * same batch, no more than {@link RoboPiLink#kMaxSetupCommands} of them.
+     */
+    public default void readSetup(PigpioConnection pigpio) throws IOException {}
+
+    /**
+     * Finishes setting the device up on the Pi, creating whatever diozero devices the raw setup did
+     * not cover. Called once, when the device is registered or, with deferred provisioning, when the
+     * link provisions every declared device together.
+     */
+    public default void provision(BaseNativeDeviceFactory deviceFactory) {}
+
+    /**
+     * Whether the device has a commanded value that has not been sent to the Pi yet.
+     */
+    public default boolean isDirty() {return false;}
+
+    /**
+     * Sends the newest output value to the Pi. Called on the {@link RoboPiLink} command runner thread
+     * after the device asks for it with {@link RoboPiLink#requestWrite(PigpiojDevice)}.
+     */
+    public default void writeOutput() {}
+
+    /**
+     * Whether the device's state may be out of date because the connection to the Pi was lost.
+     */
+    public default boolean isStale() {return false;}
+
+    /**
+     * Called when the connection to the Pi is lost.
+     */
+    public default void markStale() {}
+
+    /**
+     * Recreates the device on a new connection after the old one was lost, restoring its pin mode and
+     * newest output. Called on the {@link ConnectionSupervisor} thread.
+     */
+    public default void reconnect(BaseNativeDeviceFactory deviceFactory) {}
 }
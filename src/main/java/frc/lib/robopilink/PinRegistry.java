@@ -0,0 +1,121 @@
+package frc.lib.robopilink;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongBinaryOperator;
+
+import com.diozero.api.DeviceMode;
+import com.diozero.api.PinInfo;
+import com.diozero.sbc.BoardPinInfo;
+
+/**
+ * Tracks which GPIO pins (0-53) are in use on a Pi as bits of a single long.
+ *
+ * <p>Claims are atomic, so two devices racing for a pin cannot both get it, and each claim is
+ * checked against the board's {@link BoardPinInfo} so a device on a pin that cannot do what it needs
+ * fails when it is constructed instead of when it is first written. The claimed pins are also kept
+ * as masks per use, which lets the bank output paths filter their masks in constant time.
+ */
+public class PinRegistry {
+    public static final int kPinCount = 54;
+
+    private static final LongBinaryOperator kOr = (a, b) -> a | b;
+    private static final LongBinaryOperator kAndNot = (a, b) -> a & ~b;
+
+    private final BoardPinInfo m_boardPinInfo;
+    private final AtomicLong m_claimed = new AtomicLong();
+    private final AtomicLong m_digitalInputs = new AtomicLong();
+    private final AtomicLong m_digitalOutputs = new AtomicLong();
+    private final AtomicLong m_pwmOutputs = new AtomicLong();
+
+    public PinRegistry(BoardPinInfo boardPinInfo) {
+        m_boardPinInfo = boardPinInfo;
+    }
+
+    /**
+     * Claims a pin for a use.
+     *
+     * @param port GPIO number
+     * @param mode {@link DeviceMode#DIGITAL_INPUT}, {@link DeviceMode#DIGITAL_OUTPUT} or
+     *     {@link DeviceMode#PWM_OUTPUT}. PWM is accepted on pins without hardware PWM as long as they
+     *     can be a digital output, since pigpio falls back to software PWM.
+     * @throws RuntimeException if the pin does not exist, cannot be used that way or is already claimed
+     */
+    public void claim(int port, DeviceMode mode) {
+        AtomicLong mask = maskFor(mode);
+        checkCapability(port, mode);
+
+        long bit = 1L << port;
+        if ((m_claimed.getAndAccumulate(bit, kOr) & bit) != 0) {
+            throw new RuntimeException("port " + port + " is already in use on RPi");
+        }
+        mask.getAndAccumulate(bit, kOr);
+    }
+
+    public void release(int port) {
+        long bit = 1L << port;
+        m_digitalInputs.getAndAccumulate(bit, kAndNot);
+        m_digitalOutputs.getAndAccumulate(bit, kAndNot);
+        m_pwmOutputs.getAndAccumulate(bit, kAndNot);
+        m_claimed.getAndAccumulate(bit, kAndNot);
+    }
+
+    public boolean isClaimed(int port) {
+        return port >= 0 && port < kPinCount && (m_claimed.get() & (1L << port)) != 0;
+    }
+
+    /**
+     * Whether the pin has a hardware PWM channel, rather than needing software PWM.
+     */
+    public boolean hasHardwarePwm(int port) {
+        return pinInfo(port).map(info -> info.isSupported(DeviceMode.PWM_OUTPUT)).orElse(false);
+    }
+
+    public long getClaimedMask() {
+        return m_claimed.get();
+    }
+
+    public long getDigitalInputMask() {
+        return m_digitalInputs.get();
+    }
+
+    public long getDigitalOutputMask() {
+        return m_digitalOutputs.get();
+    }
+
+    public long getPwmOutputMask() {
+        return m_pwmOutputs.get();
+    }
+
+    private void checkCapability(int port, DeviceMode mode) {
+        if (port < 0 || port >= kPinCount) {
+            throw new RuntimeException("port " + port + " does not exist on RPi");
+        }
+        Optional<PinInfo> info = pinInfo(port);
+        if (info.isEmpty()) {
+            throw new RuntimeException("port " + port + " does not exist on RPi");
+        }
+        boolean supported = info.get().isSupported(mode)
+            || (mode == DeviceMode.PWM_OUTPUT && info.get().isSupported(DeviceMode.DIGITAL_OUTPUT));
+        if (!supported) {
+            throw new RuntimeException("port " + port + " does not support " + mode + " on RPi");
+        }
+    }
+
+    private Optional<PinInfo> pinInfo(int port) {
+        return m_boardPinInfo.getByGpioNumber(port);
+    }
+
+    private AtomicLong maskFor(DeviceMode mode) {
+        switch (mode) {
+            case DIGITAL_INPUT:
+                return m_digitalInputs;
+            case DIGITAL_OUTPUT:
+                return m_digitalOutputs;
+            case PWM_OUTPUT:
+                return m_pwmOutputs;
+            default:
+                throw new IllegalArgumentException("pins cannot be claimed as " + mode);
+        }
+    }
+}
@@ -1,15 +1,52 @@
 package frc.lib.robopilink;
 
+import java.io.IOException;
+import java.util.OptionalLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+
+import com.diozero.api.DeviceMode;
 import com.diozero.api.DigitalInputDevice;
 import com.diozero.api.GpioPullUpDown;
+import com.diozero.internal.spi.BaseNativeDeviceFactory;
 
+/**
+ * A digital input pin.
+ *
+ * <p>Bouncing contacts are filtered on the Pi by pigpiod's glitch and noise filters, so on pins 0-31
+ * with a pigpiod connection the bounces never cross the network and the level and edges reported
+ * are already clean. Polled inputs apply the same settings in the main loop instead, at the
+ * resolution of one cycle.
+ */
 public class RPLInputDigital implements PigpiojDevice {
-    @SuppressWarnings("unused")
     private RoboPiLink pythonInterface;
     private int port;
     private GpioPullUpDown pullUp;
     private boolean value = false;
-    private DigitalInputDevice i;
+    private int polledEdgeCount = 0;
+    // last value recorded, and the recording it went to
+    private boolean recordedValue = false;
+    private int recordedIn = 0;
+    // edges counted by notifiers from before a reconnect
+    private volatile int edgeCountBase = 0;
+    private volatile boolean stale = false;
+    private volatile DigitalInputDevice i;
+    private volatile PigpioNotifier notifier;
+    // read from the link's bulk input read instead of through i
+    private volatile boolean bulkRead = false;
+    // set up with raw pigpio commands, without i
+    private volatile boolean raw = false;
+
+    private volatile int glitchMicros = 0;
+    private volatile int noiseSteadyMicros = 0;
+    private volatile int noiseActiveMicros = 0;
+    // a polled level that differs from value, and when it was first read
+    private boolean pendingValue = false;
+    private long pendingSinceNanos = 0;
+    private boolean polled = false;
+    // filtered edges, written only by whichever thread sees changes: the notifier reader, or the main loop when polling
+    private volatile int risingEdgeCount = 0;
+    private volatile int fallingEdgeCount = 0;
 
     public RPLInputDigital(RoboPiLink pythonInterface, int port) {
         this(pythonInterface, port, GpioPullUpDown.PULL_UP);
@@ -24,38 +61,261 @@ public class RPLInputDigital implements PigpiojDevice {
         this.pythonInterface = pythonInterface;
         this.pullUp = pullUpDown;
 
-        if (pythonInterface.isPortTaken(port)) {
-            throw new RuntimeException("port " + port + " is already in use on RPi");
+        pythonInterface.claimPort(port, DeviceMode.DIGITAL_INPUT);
+
+        pythonInterface.registerDevice(this);
+    }
+
+    private DigitalInputDevice build(BaseNativeDeviceFactory deviceFactory) {
+        return new DigitalInputDevice.Builder(port).setPullUpDown(pullUp).setDeviceFactory(deviceFactory).build();
+    }
+
+    public boolean queueSetup(PigpioConnection pigpio) throws IOException {
+        pigpio.queueInputSetup(port, pullUp);
+        if (port <= 31) {
+            pigpio.queueInputFilter(port, glitchMicros, noiseSteadyMicros, noiseActiveMicros);
         }
+        raw = true;
+        return true;
+    }
 
-        i = new DigitalInputDevice.Builder(port).setPullUpDown(pullUp).setDeviceFactory(pythonInterface.getDeviceFactory()).build();
+    public void provision(BaseNativeDeviceFactory deviceFactory) {
+        if (!raw) {
+            i = build(deviceFactory);
+        }
+        watch();
+    }
 
-        pythonInterface.registerDevice(this);
+    private void watch() {
+        PigpioNotifier notifier = pythonInterface.watchInput(port).orElse(null);
+        if (notifier != null) {
+            int bit = 1 << port;
+            notifier.addListener(bit, (tick, levels, changed) -> countEdge((levels & bit) != 0));
+        } else {
+            bulkRead = pythonInterface.pollInput(port);
+        }
+        this.notifier = notifier;
+    }
+
+    private void countEdge(boolean level) {
+        if (level) {
+            risingEdgeCount++;
+        } else {
+            fallingEdgeCount++;
+        }
+    }
+
+    public void reconnect(BaseNativeDeviceFactory deviceFactory) {
+        if (!raw) {
+            i = build(deviceFactory);
+        }
+        edgeCountBase = getEdgeCount();
+        polledEdgeCount = edgeCountBase;
+        watch();
+        // a new notifier starts from the current level; a polled input is fresh after its next read
+        stale = notifier == null;
+    }
+
+    /**
+     * Whether {@link #getValue()} may be out of date because the connection to the Pi was lost.
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    public void markStale() {
+        stale = true;
     }
 
     public int getPort() {
         return port;
     }
 
+    /**
+     * Ignores level changes until the new level has held for {@code seconds}, debouncing the input.
+     * Applied by pigpiod on the Pi, up to 0.3 s.
+     */
+    public void setGlitchFilter(double seconds) {
+        setFilter(toMicros(seconds, 300_000), noiseSteadyMicros, noiseActiveMicros);
+    }
+
+    /**
+     * Ignores every change for {@code activeSeconds} once the level has changed at least every
+     * {@code steadySeconds}, for inputs that become noisy for a while, such as a motor starting.
+     * Applied by pigpiod on the Pi, up to 0.3 s steady and 1 s active.
+     */
+    public void setNoiseFilter(double steadySeconds, double activeSeconds) {
+        setFilter(glitchMicros, toMicros(steadySeconds, 300_000), toMicros(activeSeconds, 1_000_000));
+    }
+
+    private static int toMicros(double seconds, int max) {
+        int micros = (int) Math.round(seconds * 1e6);
+        if (micros < 0 || micros > max) {
+            throw new IllegalArgumentException("input filter must be between 0 and " + max / 1e6 + " s, got " + seconds);
+        }
+        return micros;
+    }
+
+    private void setFilter(int glitch, int noiseSteady, int noiseActive) {
+        glitchMicros = glitch;
+        noiseSteadyMicros = noiseSteady;
+        noiseActiveMicros = noiseActive;
+        // otherwise it goes out with the rest of the pin's setup
+        if (raw) {
+            pythonInterface.applyInputFilter(port, glitch, noiseSteady, noiseActive);
+        }
+    }
+
+    public double getGlitchFilterSeconds() {
+        return glitchMicros / 1e6;
+    }
+
+    /**
+     * Gets the number of filtered changes from low to high since the input was created.
+     */
+    public int getRisingEdgeCount() {
+        return risingEdgeCount;
+    }
+
+    /**
+     * Gets the number of filtered changes from high to low since the input was created.
+     */
+    public int getFallingEdgeCount() {
+        return fallingEdgeCount;
+    }
+
+    /**
+     * Gets a condition that is true once for every time the input went from low to high since it
+     * was last checked, for {@code new Trigger(input.risingEdge()).onTrue(command)}. Presses shorter
+     * than a scheduler run are not missed. Every edge is reported in a run of its own, with a false
+     * run after it so the trigger sees each one, so edges that came faster than that are reported
+     * late rather than merged. Each call makes an independent condition.
+     */
+    public BooleanSupplier risingEdge() {
+        return new EdgeEvent(this::getRisingEdgeCount);
+    }
+
+    /**
+     * Like {@link #risingEdge()}, for changes from high to low.
+     */
+    public BooleanSupplier fallingEdge() {
+        return new EdgeEvent(this::getFallingEdgeCount);
+    }
+
+    /**
+     * Gets the input's level. With a batched exchange this is the level as of the last
+     * {@link RoboPiLink#snapshotInputs()}; otherwise a notification backed input gives its latest
+     * level and a polled one the level of the last cycle.
+     */
     public boolean getValue() {
-        return value;
+        PigpioNotifier notifier = this.notifier;
+        if (notifier != null && !pythonInterface.isBatchedExchange()) return notifier.getLevel(port);
+        return pythonInterface.getInput(port) != 0;
+    }
+
+    /**
+     * Whether this input is pushed from pigpiod on change instead of being polled every loop.
+     */
+    public boolean isNotificationBacked() {
+        return notifier != null;
     }
 
-    private Runnable getLoggingPeriodic() {
-        return () -> {
-            value = i.getValue();
-        };
+    /**
+     * Gets the pigpio tick (microseconds, wrapping) of the last level change. Only available when
+     * the input is notification backed.
+     */
+    public OptionalLong getLastChangeTick() {
+        if (notifier == null) return OptionalLong.empty();
+        return OptionalLong.of(notifier.getLastChangeTick(port));
     }
 
-    public Runnable getDisabledPeriodic() {
-        return getLoggingPeriodic();
+    /**
+     * Gets the number of level changes seen since the input was created. When notification backed
+     * this includes pulses shorter than one loop period.
+     */
+    public int getEdgeCount() {
+        PigpioNotifier notifier = this.notifier;
+        if (notifier != null) return edgeCountBase + notifier.getEdgeCount(port);
+        return polledEdgeCount;
     }
 
-    public Runnable getEnabledPeriodic() {
-        return getLoggingPeriodic();
+    private void logValue() {
+        if (notifier == null) {
+            poll();
+        }
+        PigpioNotifier notifier = this.notifier;
+        boolean current = notifier != null ? notifier.getLevel(port) : value;
+        pythonInterface.setInput(port, current ? 1 : 0);
+
+        // only changes are recorded, plus the first value of each recording
+        int recording = pythonInterface.getRecording();
+        if (recording != 0) {
+            if (current != recordedValue || recording != recordedIn) {
+                pythonInterface.record(RoboPiLinkRecorder.kInput, port, current ? 1 : 0);
+                recordedValue = current;
+                recordedIn = recording;
+            }
+        }
+    }
+
+    private void poll() {
+        boolean level = bulkRead ? pythonInterface.getInputLevel(port) : i.getValue();
+        stale = false;
+        if (!polled) {
+            // the starting level is not an edge
+            polled = true;
+            value = pendingValue = level;
+            return;
+        }
+        if (level == value) {
+            pendingValue = value;
+            return;
+        }
+        // the cycle's time rather than the clock, so a replay filters the same as the recorded run
+        long now = pythonInterface.getCycleNanos();
+        if (level != pendingValue) {
+            pendingValue = level;
+            pendingSinceNanos = now;
+        }
+        // pigpiod only filters notifications, so a polled input is debounced here
+        if (now - pendingSinceNanos < Math.max(glitchMicros, noiseSteadyMicros) * 1000L) return;
+        value = level;
+        polledEdgeCount++;
+        countEdge(level);
+    }
+
+    public void disabledPeriodic() {
+        logValue();
+    }
+
+    public void enabledPeriodic() {
+        logValue();
     }
 
     public GpioPullUpDown getPullUpDown() {
         return pullUp;
     }
+
+    private static class EdgeEvent implements BooleanSupplier {
+        private final IntSupplier count;
+        private int seen;
+        private boolean reported = false;
+
+        EdgeEvent(IntSupplier count) {
+            this.count = count;
+            seen = count.getAsInt();
+        }
+
+        public boolean getAsBoolean() {
+            if (reported) {
+                reported = false;
+                return false;
+            }
+            if (count.getAsInt() == seen) return false;
+            // one edge at a time, so edges that piled up between checks still get a pulse each
+            seen++;
+            reported = true;
+            return true;
+        }
+    }
 }
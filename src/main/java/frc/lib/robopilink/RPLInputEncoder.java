@@ -0,0 +1,332 @@
+package frc.lib.robopilink;
+
+import java.io.IOException;
+
+import com.diozero.api.DeviceMode;
+import com.diozero.api.DigitalInputDevice;
+import com.diozero.api.GpioPullUpDown;
+import com.diozero.internal.spi.BaseNativeDeviceFactory;
+
+/**
+ * A quadrature encoder on two input pins, counting every edge of both channels (4x decoding).
+ *
+ * <p>With a pigpiod connection, robopilinkd counts the edges on the Pi and sends the change in count
+ * and the period per count in one batch per loop cycle, so no edge crosses the network however fast
+ * the encoder turns, none are missed between cycles, and the period comes from the Pi's clock rather
+ * than from network timing. If robopilinkd cannot be reached, edges on pins 0-31 are decoded here
+ * from pigpiod's notification stream instead, one report per edge. Otherwise, for example when
+ * simulating, both pins are polled once per cycle, which only keeps up with slow encoders.
+ *
+ * <p>The count goes up when channel A leads channel B. With a batched exchange the count, distance
+ * and rate are those of the last {@link RoboPiLink#snapshotInputs()}, like every other input.
+ */
+public class RPLInputEncoder implements PigpiojDevice {
+    // change in count for each (previous state, new state) pair, with state = A << 1 | B;
+    // kError marks both channels changing at once, which means an edge was missed
+    private static final int kError = 2;
+    private static final int[] kTransitions = {
+        0, -1, 1, kError,
+        1, 0, kError, -1,
+        -1, kError, 0, 1,
+        kError, 1, -1, 0,
+    };
+    private static final int kPeriodEdges = 4;
+
+    private RoboPiLink pythonInterface;
+    private int portA;
+    private int portB;
+    private GpioPullUpDown pullUpDown;
+    private volatile DigitalInputDevice a;
+    private volatile DigitalInputDevice b;
+    private volatile PigpioNotifier notifier;
+    // counted by robopilinkd on the Pi
+    private volatile boolean piCounted = false;
+    // polled from the link's bulk input read instead of through a and b
+    private volatile boolean bulkRead = false;
+    private volatile boolean stale = false;
+    // set up with raw pigpio commands, without a and b
+    private volatile boolean raw = false;
+
+    private double distancePerCount = 1.0;
+    private double stoppedTimeoutSeconds = 0.1;
+
+    // written only by whichever thread takes in edges: robopilinkd's or the notifier's reader, or the
+    // main loop when polling
+    private int state = 0;
+    private volatile int direction = 0;
+    private final int[] edgeTicks = new int[kPeriodEdges];
+    private int edgeIndex = 0;
+    private int edgesInDirection = 0;
+    private volatile long count = 0;
+    private volatile long errorCount = 0;
+    private volatile double periodUs = Double.POSITIVE_INFINITY;
+    private volatile long lastEdgeNanos = 0;
+
+    // read once per cycle by the main loop
+    private long cycleCount = 0;
+    private long countDelta = 0;
+    // set from robot code
+    private volatile long offset = 0;
+    private int recordedIn = 0;
+
+    public RPLInputEncoder(RoboPiLink pythonInterface, int portA, int portB) {
+        this(pythonInterface, portA, portB, GpioPullUpDown.PULL_UP);
+    }
+
+    public RPLInputEncoder(RoboPiLink pythonInterface, int portA, int portB, GpioPullUpDown pullUpDown) {
+        this.pythonInterface = pythonInterface;
+        this.portA = portA;
+        this.portB = portB;
+        this.pullUpDown = pullUpDown;
+
+        pythonInterface.claimPort(portA, DeviceMode.DIGITAL_INPUT);
+        pythonInterface.claimPort(portB, DeviceMode.DIGITAL_INPUT);
+
+        pythonInterface.registerDevice(this);
+    }
+
+    public boolean queueSetup(PigpioConnection pigpio) throws IOException {
+        pigpio.queueInputSetup(portA, pullUpDown);
+        pigpio.queueInputSetup(portB, pullUpDown);
+        raw = true;
+        return true;
+    }
+
+    public void provision(BaseNativeDeviceFactory deviceFactory) {
+        connect(deviceFactory);
+    }
+
+    private void connect(BaseNativeDeviceFactory deviceFactory) {
+        if (!raw) {
+            a = new DigitalInputDevice.Builder(portA).setPullUpDown(pullUpDown).setDeviceFactory(deviceFactory).build();
+            b = new DigitalInputDevice.Builder(portB).setPullUpDown(pullUpDown).setDeviceFactory(deviceFactory).build();
+        }
+
+        piCounted = pythonInterface.watchEncoder(portA, portB, this::counted);
+        if (piCounted) {
+            notifier = null;
+            return;
+        }
+        PigpioNotifier watchingA = pythonInterface.watchInput(portA).orElse(null);
+        PigpioNotifier watchingB = pythonInterface.watchInput(portB).orElse(null);
+        if (watchingA != null && watchingB != null) {
+            state = (watchingA.getLevel(portA) ? 2 : 0) | (watchingB.getLevel(portB) ? 1 : 0);
+            int bitA = 1 << portA, bitB = 1 << portB;
+            watchingA.addListener(bitA | bitB, (tick, levels, changed) ->
+                decode(tick, (levels & bitA) != 0, (levels & bitB) != 0));
+            notifier = watchingA;
+        } else {
+            notifier = null;
+            bulkRead = pythonInterface.pollInput(portA) && pythonInterface.pollInput(portB);
+            if (bulkRead) {
+                state = (pythonInterface.getInputLevel(portA) ? 2 : 0) | (pythonInterface.getInputLevel(portB) ? 1 : 0);
+            } else {
+                state = (a.getValue() ? 2 : 0) | (b.getValue() ? 1 : 0);
+            }
+        }
+    }
+
+    /**
+     * Advances the count for new channel levels.
+     *
+     * @param tick time of the change in microseconds; only differences matter, and it may wrap
+     */
+    private void decode(int tick, boolean levelA, boolean levelB) {
+        int next = (levelA ? 2 : 0) | (levelB ? 1 : 0);
+        int delta = kTransitions[state << 2 | next];
+        state = next;
+        if (delta == 0) return;
+        if (delta == kError) {
+            errorCount++;
+            edgesInDirection = 0;
+            return;
+        }
+
+        if (delta != direction) {
+            direction = delta;
+            edgesInDirection = 0;
+        }
+        // period per count over the last few edges, which evens out channels that are not exactly
+        // 90 degrees apart
+        if (edgesInDirection > 0) {
+            int edges = Math.min(edgesInDirection, kPeriodEdges);
+            int oldest = edgeTicks[(edgeIndex - edges + kPeriodEdges) % kPeriodEdges];
+            periodUs = (double) (tick - oldest) / edges;
+        }
+        edgeTicks[edgeIndex] = tick;
+        edgeIndex = (edgeIndex + 1) % kPeriodEdges;
+        edgesInDirection++;
+
+        lastEdgeNanos = System.nanoTime();
+        count += delta;
+    }
+
+    /**
+     * Takes in a batch of changes counted by robopilinkd.
+     */
+    private void counted(long delta, int periodUs, long errors) {
+        errorCount += errors;
+        if (delta == 0) return;
+        if (periodUs != 0) {
+            direction = periodUs > 0 ? 1 : -1;
+            this.periodUs = Math.abs(periodUs);
+        } else {
+            // a single edge since the direction changed
+            direction = delta > 0 ? 1 : -1;
+            this.periodUs = Double.POSITIVE_INFINITY;
+        }
+        lastEdgeNanos = System.nanoTime();
+        count += delta;
+    }
+
+    private void poll() {
+        if (notifier != null || piCounted) return;
+        int tick = (int) (System.nanoTime() / 1000);
+        if (bulkRead) {
+            decode(tick, pythonInterface.getInputLevel(portA), pythonInterface.getInputLevel(portB));
+        } else {
+            decode(tick, a.getValue(), b.getValue());
+        }
+        stale = false;
+    }
+
+    public void disabledPeriodic() {
+        poll();
+        takeDelta();
+    }
+
+    public void enabledPeriodic() {
+        poll();
+        takeDelta();
+    }
+
+    private void takeDelta() {
+        long current = count;
+        countDelta = current - cycleCount;
+        cycleCount = current;
+        // the count from before any reset, since robot code takes the offset off itself, and the rate
+        // in port B's otherwise unused slot
+        pythonInterface.setInput(portA, current);
+        pythonInterface.setInput(portB, measureRate());
+
+        int recording = pythonInterface.getRecording();
+        if (recording != 0 && (countDelta != 0 || recording != recordedIn)) {
+            pythonInterface.record(RoboPiLinkRecorder.kEncoderCount, portA, current);
+            recordedIn = recording;
+        }
+    }
+
+    public void reconnect(BaseNativeDeviceFactory deviceFactory) {
+        // edges while disconnected are lost, so the count carries on from where it was
+        connect(deviceFactory);
+        edgesInDirection = 0;
+        stale = notifier == null && !piCounted;
+    }
+
+    /**
+     * Whether the count may be out of date because the connection to the Pi was lost.
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    public void markStale() {
+        stale = true;
+    }
+
+    /**
+     * Whether edges are decoded from pigpiod notifications instead of being polled every loop.
+     */
+    public boolean isNotificationBacked() {
+        return notifier != null;
+    }
+
+    /**
+     * Whether edges are counted by robopilinkd on the Pi, which only sends the changes once per cycle.
+     */
+    public boolean isCountedOnPi() {
+        return piCounted;
+    }
+
+    public int getPort() {
+        return portA;
+    }
+
+    public int getPortB() {
+        return portB;
+    }
+
+    /**
+     * Sets the distance moved per count, that is per edge on either channel.
+     */
+    public void setDistancePerCount(double distancePerCount) {
+        this.distancePerCount = distancePerCount;
+    }
+
+    /**
+     * Sets how long without an edge before the encoder is considered stopped.
+     */
+    public void setStoppedTimeout(double seconds) {
+        stoppedTimeoutSeconds = seconds;
+    }
+
+    public long getCount() {
+        return countSinceCreated() - offset;
+    }
+
+    private long countSinceCreated() {
+        return pythonInterface.isBatchedExchange() ? (long) pythonInterface.getInput(portA) : count;
+    }
+
+    /**
+     * Gets the change in count between the last two loop cycles.
+     */
+    public long getCountDelta() {
+        return countDelta;
+    }
+
+    /**
+     * Gets the number of times both channels changed at once, meaning edges were missed.
+     */
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Gets the counts per second, measured from the pigpio timestamps of the last few edges.
+     */
+    public double getRate() {
+        if (pythonInterface.isBatchedExchange()) return pythonInterface.getInput(portB);
+        return measureRate();
+    }
+
+    private double measureRate() {
+        if (System.nanoTime() - lastEdgeNanos > stoppedTimeoutSeconds * 1e9) return 0.0;
+        double period = periodUs;
+        if (Double.isInfinite(period) || period <= 0) return 0.0;
+        return direction * 1e6 / period;
+    }
+
+    public double getDistance() {
+        return getCount() * distancePerCount;
+    }
+
+    public double getVelocity() {
+        return getRate() * distancePerCount;
+    }
+
+    public boolean getStopped() {
+        return getRate() == 0.0;
+    }
+
+    /**
+     * Sets the current position as zero.
+     */
+    public void reset() {
+        offset = countSinceCreated();
+    }
+
+    public GpioPullUpDown getPullUpDown() {
+        return pullUpDown;
+    }
+}
@@ -1,38 +1,101 @@
 package frc.lib.robopilink;
 
+import java.io.IOException;
+
+import com.diozero.api.DeviceMode;
 import com.diozero.api.DigitalOutputDevice;
+import com.diozero.internal.spi.BaseNativeDeviceFactory;
 
 public class RPLOutputDigital implements PigpiojDevice {
-    @SuppressWarnings("unused")
     private RoboPiLink pythonInterface;
     private int port;
+    // robot code's last value, the main loop takes its own from the link
     private boolean commandedValue = false;
-    private boolean lastSentValue = false;
-    private DigitalOutputDevice i;
+    // what the main loop wants on the pin: the commanded value when enabled, off when disabled
+    private volatile boolean outputValue = false;
+    private volatile boolean lastSentValue = false;
+    private volatile boolean stale = false;
+    private volatile DigitalOutputDevice i;
+    // set up with raw pigpio commands, written through bank writes, and without i
+    private volatile boolean raw = false;
 
     public RPLOutputDigital(RoboPiLink pythonInterface, int port) {
         this.port = port;
         this.pythonInterface = pythonInterface;
 
-        if (pythonInterface.isPortTaken(port)) {
-            throw new RuntimeException("port " + port + " is already in use on RPi");
-        }
+        pythonInterface.claimPort(port, DeviceMode.DIGITAL_OUTPUT);
+
+        pythonInterface.registerDevice(this);
+    }
 
-        i = new DigitalOutputDevice.Builder(port)
-            .setDeviceFactory(pythonInterface.getDeviceFactory())
-            .setInitialValue(false)
+    private DigitalOutputDevice build(BaseNativeDeviceFactory deviceFactory, boolean initialValue) {
+        return new DigitalOutputDevice.Builder(port)
+            .setDeviceFactory(deviceFactory)
+            .setInitialValue(initialValue)
             .build();
+    }
 
-        pythonInterface.registerDevice(this);
+    public boolean queueSetup(PigpioConnection pigpio) throws IOException {
+        // a write also makes the pin an output, without a glitch to its old level
+        pigpio.queue(PigpioConnection.CMD_WRITE, port, outputValue ? 1 : 0);
+        raw = true;
+        return true;
+    }
+
+    public void provision(BaseNativeDeviceFactory deviceFactory) {
+        if (!raw) {
+            i = build(deviceFactory, outputValue);
+        }
+    }
+
+    public void disabledInit() {
+        outputValue = false;
+        pythonInterface.requestWrite(this);
+    }
+
+    public void enabledPeriodic() {
+        outputValue = pythonInterface.getCommand(port) != 0;
+        if (!isDirty()) {
+            pythonInterface.recordSkippedWrite();
+            return;
+        }
+        pythonInterface.requestWrite(this);
+    }
+
+    public boolean isOutput() {
+        return true;
+    }
+
+    public boolean isDirty() {
+        return lastSentValue != outputValue;
+    }
+
+    public void writeOutput() {
+        boolean value = outputValue;
+        lastSentValue = value;
+        pythonInterface.record(RoboPiLinkRecorder.kSent, port, value ? 1 : 0);
+        if (pythonInterface.hasBankOutput()) {
+            pythonInterface.queueDigitalWrite(port, value);
+        } else {
+            i.setValue(value);
+        }
     }
 
-    public Runnable getDisabledInit() {
-        return getSendValueString(false);
+    public void reconnect(BaseNativeDeviceFactory deviceFactory) {
+        boolean value = outputValue;
+        if (!raw) {
+            i = build(deviceFactory, value);
+        }
+        lastSentValue = value;
+        stale = false;
+    }
+
+    public boolean isStale() {
+        return stale;
     }
 
-    public Runnable getEnabledPeriodic() {
-        if (lastSentValue == commandedValue) return () -> {};
-        return getSendValueString(commandedValue);
+    public void markStale() {
+        stale = true;
     }
 
     public void setOn() {
@@ -44,7 +107,11 @@ public class RPLOutputDigital implements PigpiojDevice {
     }
 
     public void setValue(boolean value) {
+        if (value != commandedValue) {
+            pythonInterface.record(RoboPiLinkRecorder.kCommanded, port, value ? 1 : 0);
+        }
         commandedValue = value;
+        pythonInterface.setCommand(port, value ? 1 : 0);
     }
 
     public int getPort() {
@@ -55,10 +122,8 @@ public class RPLOutputDigital implements PigpiojDevice {
         return lastSentValue;
     }
 
-    private Runnable getSendValueString(boolean value) {
-        lastSentValue = value;
-        return () -> {
-            i.setValue(value);
-        };
+    public double getSentValue() {
+        return lastSentValue ? 1 : 0;
     }
+
 }
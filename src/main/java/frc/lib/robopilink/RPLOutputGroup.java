@@ -0,0 +1,106 @@
+package frc.lib.robopilink;
+
+/**
+ * Outputs whose new values take effect together, such as the two sides of a tank drive.
+ *
+ * <p>Values set on the members between {@link #begin()} and {@link #commit()} reach the main loop in
+ * one publication, so the same cycle picks all of them up, and the members' writes are handed to the
+ * command runner at once, so they leave in the same pass. With a raw pigpiod connection that pass
+ * sends them in one batch, which pigpiod runs back to back, between two tick reads that measure on
+ * the Pi how far apart the first and last pin changed. Otherwise the skew is the time between the
+ * first and last write on the runner. {@link #getSkew()} collects it for every pass that wrote the
+ * group.
+ *
+ * <p>With {@link RoboPiLink#setBatchedExchange(boolean)} every command already goes out together at
+ * {@link RoboPiLink#publishCommands()}, and {@code begin} and {@code commit} only mark the
+ * transaction. A group is serviced at the fastest {@link ServiceTier} of its members.
+ */
+public class RPLOutputGroup {
+    private final RoboPiLink m_link;
+    private final long m_mask;
+
+    private final Histogram m_skew = new Histogram();
+    private volatile long m_lastSkewNanos = 0;
+    // indexes of the tick reads around the group in the runner's batch, or -1, and the flush count
+    // of the connection once that batch is sent; runner only
+    private int m_openingTick = -1;
+    private int m_closingTick = -1;
+    private int m_tickBatch = 0;
+
+    /**
+     * @param members {@link RPLOutputServo}s, {@link RPLOutputPWM}s and {@link RPLOutputDigital}s on
+     *     the link; servos on an {@link RPLServoGroup} are already updated together by its waveform
+     *     and cannot be members
+     */
+    public RPLOutputGroup(RoboPiLink link, PigpiojDevice... members) {
+        long mask = 0;
+        for (PigpiojDevice member : members) {
+            int port = member.getPort();
+            if (!member.isOutput()) {
+                throw new IllegalArgumentException("port " + port + " is not an output");
+            }
+            if (member instanceof RPLOutputServo && ((RPLOutputServo) member).hasServoGroup()) {
+                throw new IllegalArgumentException("port " + port + " is driven by a servo group");
+            }
+            mask |= 1L << port;
+        }
+        m_link = link;
+        m_mask = mask;
+
+        link.registerOutputGroup(this);
+    }
+
+    /**
+     * Starts a transaction: values set on the members from here on are held back until
+     * {@link #commit()}. Call from the thread that sets the values.
+     */
+    public void begin() {
+        m_link.beginCommands(m_mask);
+    }
+
+    /**
+     * Hands every value set since {@link #begin()} to the main loop at once.
+     */
+    public void commit() {
+        m_link.commitCommands(m_mask);
+    }
+
+    long getMask() {
+        return m_mask;
+    }
+
+    void setTickIndexes(int opening, int closing, int batch) {
+        m_openingTick = opening;
+        m_closingTick = closing;
+        m_tickBatch = batch;
+    }
+
+    int getOpeningTickIndex() {
+        return m_openingTick;
+    }
+
+    int getClosingTickIndex() {
+        return m_closingTick;
+    }
+
+    int getTickBatch() {
+        return m_tickBatch;
+    }
+
+    void recordSkew(long nanos) {
+        m_skew.record(nanos);
+        m_lastSkewNanos = nanos;
+    }
+
+    /**
+     * Gets the time between the first and last member being written, in nanoseconds, for every pass
+     * of the command runner that wrote the group.
+     */
+    public Histogram getSkew() {
+        return m_skew;
+    }
+
+    public double getLastSkewSeconds() {
+        return m_lastSkewNanos / 1e9;
+    }
+}
@@ -1,41 +1,126 @@
 package frc.lib.robopilink;
 
 
+import java.io.IOException;
+
+import com.diozero.api.DeviceMode;
 import com.diozero.api.PwmOutputDevice;
+import com.diozero.internal.spi.BaseNativeDeviceFactory;
 
 
 public class RPLOutputPWM implements PigpiojDevice {
-    @SuppressWarnings("unused")
+    // diozero's default board PWM frequency, which the PwmOutputDevice used
+    private static final int kFrequency = 50;
+
     private RoboPiLink pythonInterface;
     private int port;
+    // robot code's last value, the main loop takes its own from the link
     private double commandedValue = 0.0;
-    private double lastSentValue = 0.0;
-    private PwmOutputDevice i;
+    // what the main loop wants on the pin: the commanded value when enabled, off when disabled
+    private volatile double outputValue = 0.0;
+    private volatile double lastSentValue = 0.0;
+    private volatile boolean stale = false;
+    private volatile PwmOutputDevice i;
+    // pigpio's duty cycle range for the pin, read with the setup batch
+    private volatile int range = 0;
+    // set up over the raw connection, without a PwmOutputDevice
+    private volatile boolean raw = false;
+    // index of the range read in the setup batch
+    private int rangeResult = -1;
 
     public RPLOutputPWM(RoboPiLink pythonInterface, int port) {
         this.port = port;
         this.pythonInterface = pythonInterface;
 
-        if (pythonInterface.isPortTaken(port)) {
-            throw new RuntimeException("port " + port + " is already in use on RPi");
+        pythonInterface.claimPort(port, DeviceMode.PWM_OUTPUT);
+
+        pythonInterface.registerDevice(this);
+    }
+
+    private PwmOutputDevice build(BaseNativeDeviceFactory deviceFactory, double initialValue) {
+        return new PwmOutputDevice.Builder(port).setDeviceFactory(deviceFactory).setInitialValue((float) initialValue).build();
+    }
+
+    public boolean queueSetup(PigpioConnection pigpio) throws IOException {
+        // what the PwmOutputDevice would do, in the setup batch
+        pigpio.queue(PigpioConnection.CMD_MODES, port, 1);
+        pigpio.queue(PigpioConnection.CMD_PFS, port, kFrequency);
+        rangeResult = pigpio.getQueuedCount();
+        pigpio.queue(PigpioConnection.CMD_PRG, port, 0);
+        raw = true;
+        return true;
+    }
+
+    public void readSetup(PigpioConnection pigpio) throws IOException {
+        int range = pigpio.getResult(rangeResult);
+        this.range = range;
+        pigpio.queue(PigpioConnection.CMD_PWM, port, (int) Math.round(outputValue * range));
+    }
+
+    public void provision(BaseNativeDeviceFactory deviceFactory) {
+        if (!raw) {
+            i = build(deviceFactory, outputValue);
         }
+    }
 
-        i = new PwmOutputDevice.Builder(port).setDeviceFactory(pythonInterface.getDeviceFactory()).setInitialValue(0.0f).build();
+    public void reconnect(BaseNativeDeviceFactory deviceFactory) {
+        double value = outputValue;
+        if (!raw) {
+            i = build(deviceFactory, value);
+        }
+        lastSentValue = value;
+        stale = false;
+    }
 
-        pythonInterface.registerDevice(this);
+    public boolean isStale() {
+        return stale;
+    }
+
+    public void markStale() {
+        stale = true;
     }
 
-    public Runnable getDisabledInit() {
-        return getSendValueString(0);
+    public void disabledInit() {
+        outputValue = 0.0;
+        pythonInterface.requestWrite(this);
     }
 
-    public Runnable getEnabledPeriodic() {
-        if (lastSentValue == commandedValue) return () ->{};
-        return getSendValueString(commandedValue);
+    public void enabledPeriodic() {
+        outputValue = pythonInterface.getCommand(port);
+        if (!isDirty()) {
+            pythonInterface.recordSkippedWrite();
+            return;
+        }
+        pythonInterface.requestWrite(this);
+    }
+
+    public boolean isOutput() {
+        return true;
+    }
+
+    public boolean isDirty() {
+        return lastSentValue != outputValue;
+    }
+
+    public void writeOutput() {
+        double value = outputValue;
+        lastSentValue = value;
+        pythonInterface.record(RoboPiLinkRecorder.kSent, port, value);
+        int range = this.range;
+        if (raw) {
+            // same duty cycle as the PwmOutputDevice would send, but in the runner's batch
+            pythonInterface.queueCommand(PigpioConnection.CMD_PWM, port, (int) Math.round(value * range));
+        } else {
+            i.setValue((float) value);
+        }
     }
 
     public void setValue(double value) {
+        if (value != commandedValue) {
+            pythonInterface.record(RoboPiLinkRecorder.kCommanded, port, value);
+        }
         commandedValue = value;
+        pythonInterface.setCommand(port, value);
     }
 
     public void setOn() {
@@ -50,14 +135,12 @@ public class RPLOutputPWM implements PigpiojDevice {
         return lastSentValue;
     }
 
+    public double getSentValue() {
+        return lastSentValue;
+    }
+
     public int getPort() {
         return port;
     }
 
-    private Runnable getSendValueString(double value) {
-        lastSentValue = value;
-        return () -> {
-            i.setValue((float) value);
-        };
-    }
 }
@@ -1,44 +1,134 @@
 package frc.lib.robopilink;
 
+import java.io.IOException;
 import java.util.OptionalDouble;
 
+import com.diozero.api.DeviceMode;
 import com.diozero.api.ServoDevice;
+import com.diozero.internal.spi.BaseNativeDeviceFactory;
 
 public class RPLOutputServo implements PigpiojDevice {
-    @SuppressWarnings("unused")
     private RoboPiLink pythonInterface;
     private int port;
-    private OptionalDouble commandedValue = OptionalDouble.of(0.0);
-    private OptionalDouble lastSentValue = OptionalDouble.of(0.0);
-    private ServoDevice i;
+    // NaN stands in for an empty value (no pulses) so the loop can compare primitives;
+    // robot code's last value, the main loop takes its own from the link
+    private double commandedValue = 0.0;
+    // what the main loop wants on the pin: the commanded value when enabled, empty when disabled
+    private volatile double outputValue = 0.0;
+    private volatile double lastSentValue = 0.0;
+    private volatile boolean stale = false;
+    private volatile ServoDevice i;
+    // set when the pulses come from a group's waveform instead of i
+    private RPLServoGroup group;
+    // set up with raw pigpio commands and sent through the link's batch, without i
+    private volatile boolean raw = false;
 
     public RPLOutputServo(RoboPiLink pythonInterface, int port) {
+        this(pythonInterface, port, null);
+    }
+
+    /**
+     * Creates a servo whose pulses are sent together with the rest of {@code group}.
+     */
+    public RPLOutputServo(RoboPiLink pythonInterface, int port, RPLServoGroup group) {
         this.port = port;
         this.pythonInterface = pythonInterface;
 
-        if (pythonInterface.isPortTaken(port)) {
-            throw new RuntimeException("port " + port + " is already in use on RPi");
-        }
+        pythonInterface.claimPort(port, DeviceMode.PWM_OUTPUT);
 
-        i = new ServoDevice.Builder(port).setInitialPulseWidthUs(0).setFrequency(50).setDeviceFactory(pythonInterface.getDeviceFactory()).build();
+        if (group != null && group.isWaveBacked()) {
+            group.add(port);
+            this.group = group;
+        }
 
         pythonInterface.registerDevice(this);
     }
 
-    public Runnable getDisabledInit() {
-        return getSendValueString(OptionalDouble.empty());
+    private ServoDevice build(BaseNativeDeviceFactory deviceFactory, double initialValue) {
+        return new ServoDevice.Builder(port).setInitialPulseWidthUs(toPulseWidthUs(initialValue)).setFrequency(50).setDeviceFactory(deviceFactory).build();
+    }
+
+    private static int toPulseWidthUs(double value) {
+        if (Double.isNaN(value)) return 0;
+        // convert to microseconds
+        return (int) (value * 500 + 1500);
+    }
+
+    public boolean queueSetup(PigpioConnection pigpio) throws IOException {
+        // the group sets its own pins up; servo pulses also make the pin an output
+        if (group == null) {
+            pigpio.queue(PigpioConnection.CMD_SERVO, port, toPulseWidthUs(outputValue));
+        }
+        raw = true;
+        return true;
+    }
+
+    public void provision(BaseNativeDeviceFactory deviceFactory) {
+        if (group == null && !raw) {
+            i = build(deviceFactory, outputValue);
+        }
+    }
+
+    public void reconnect(BaseNativeDeviceFactory deviceFactory) {
+        double value = outputValue;
+        if (group != null) {
+            group.setPulseWidthUs(port, toPulseWidthUs(value));
+        } else if (!raw) {
+            i = build(deviceFactory, value);
+        }
+        lastSentValue = value;
+        stale = false;
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+
+    public void markStale() {
+        stale = true;
+    }
+
+    public void disabledInit() {
+        outputValue = Double.NaN;
+        pythonInterface.requestWrite(this);
+    }
+
+    public void enabledPeriodic() {
+        outputValue = pythonInterface.getCommand(port);
+        if (!isDirty()) {
+            pythonInterface.recordSkippedWrite();
+            return;
+        }
+        pythonInterface.requestWrite(this);
+    }
+
+    public boolean isOutput() {
+        return true;
     }
 
-    public Runnable getEnabledPeriodic() {
-        if (lastSentValue.equals(commandedValue)) return () -> {};
-        return getSendValueString(commandedValue);
+    public boolean isDirty() {
+        return Double.compare(lastSentValue, outputValue) != 0;
     }
 
     public void setValue(OptionalDouble value) {
-        commandedValue = value;
+        double newValue = value.isPresent() ? value.getAsDouble() : Double.NaN;
+        if (Double.compare(newValue, commandedValue) != 0) {
+            pythonInterface.record(RoboPiLinkRecorder.kCommanded, port, newValue);
+        }
+        commandedValue = newValue;
+        pythonInterface.setCommand(port, newValue);
     }
 
     public OptionalDouble getValue() {
+        double value = lastSentValue;
+        return Double.isNaN(value) ? OptionalDouble.empty() : OptionalDouble.of(value);
+    }
+
+    boolean hasServoGroup() {
+        return group != null;
+    }
+
+    public double getSentValue() {
         return lastSentValue;
     }
 
@@ -46,14 +136,17 @@ public class RPLOutputServo implements PigpiojDevice {
         return port;
     }
 
-    private Runnable getSendValueString(OptionalDouble value) {
+    public void writeOutput() {
+        double value = outputValue;
         lastSentValue = value;
-        if (value.isPresent()) {
-            // convert to microseconds
-            double properOutput = value.getAsDouble() * 500 + 1500;
-            return () -> i.setPulseWidthUs((int) properOutput);
+        pythonInterface.record(RoboPiLinkRecorder.kSent, port, value);
+        if (group != null) {
+            group.setPulseWidthUs(port, toPulseWidthUs(value));
+        } else if (pythonInterface.hasBankOutput()) {
+            // same as the ServoDevice would send, but in the runner's batch instead of its own round trip
+            pythonInterface.queueCommand(PigpioConnection.CMD_SERVO, port, toPulseWidthUs(value));
         } else {
-            return () -> i.setPulseWidthUs(0);
+            i.setPulseWidthUs(toPulseWidthUs(value));
         }
     }
 }
@@ -0,0 +1,162 @@
+package frc.lib.robopilink;
+
+import java.io.IOException;
+
+/**
+ * Drives several {@link RPLOutputServo}s from one pigpio DMA waveform.
+ *
+ * <p>Every servo in the group starts its pulse at the same instant of each 20 ms frame, and a
+ * change to any number of them is sent as one new waveform that pigpio swaps in at the end of the
+ * current frame. That costs two pipelined round trips (create, then swap) however many servos
+ * changed, instead of one per servo. The waveform is only swapped once per frame, so changes that
+ * arrive faster than that are merged.
+ *
+ * <p>Waveforms need the raw pigpiod connection and only cover pins 0-31. Without the raw
+ * connection, for example when simulating, the servos of a group fall back to their own
+ * {@code ServoDevice}s.
+ */
+public class RPLServoGroup {
+    static final int kFramePeriodUs = 20000;
+    private static final long kFramePeriodNanos = kFramePeriodUs * 1000L;
+    private static final int kMinPulseWidthUs = 500;
+    private static final int kMaxPulseWidthUs = 2500;
+    private static final int kWaveModeRepeatSync = 3;
+
+    private RoboPiLink pythonInterface;
+    private final int[] pulseWidthUs = new int[32];
+    private int pins = 0;
+    // pins not yet switched to output mode on the current connection
+    private int pendingModes = 0;
+    private boolean dirty = false;
+
+    // the waveform being sent and the one before it, which is only deleted once it has stopped
+    private int currentWave = -1;
+    private int previousWave = -1;
+    private long lastSwapNanos = 0;
+
+    // {on mask, off mask, delay} per pulse: one start pulse, then one per distinct pulse width
+    private final int[] pulses = new int[3 * 33];
+    private final int[] order = new int[32];
+
+    public RPLServoGroup(RoboPiLink pythonInterface) {
+        this.pythonInterface = pythonInterface;
+        pythonInterface.registerServoGroup(this);
+    }
+
+    /**
+     * Whether servos added to this group are driven by a waveform rather than individually.
+     */
+    public boolean isWaveBacked() {
+        return pythonInterface.hasBankOutput();
+    }
+
+    synchronized void add(int port) {
+        if (port < 0 || port > 31) {
+            throw new RuntimeException("port " + port + " cannot be part of a servo group on RPi");
+        }
+        pins |= 1 << port;
+        pendingModes |= 1 << port;
+        pulseWidthUs[port] = 0;
+        dirty = true;
+    }
+
+    /**
+     * Sets the pulse width of one servo in the next waveform. 0 stops its pulses.
+     */
+    synchronized void setPulseWidthUs(int port, int widthUs) {
+        if (widthUs != 0) {
+            widthUs = Math.max(kMinPulseWidthUs, Math.min(kMaxPulseWidthUs, widthUs));
+        }
+        if (pulseWidthUs[port] != widthUs) {
+            pulseWidthUs[port] = widthUs;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Sends a new waveform if any pulse width changed. Called by the command runner.
+     *
+     * @return 0, or how long to wait before trying again if the last swap was less than a frame ago
+     */
+    synchronized long flush(PigpioConnection pigpio) throws IOException {
+        if (!dirty) return 0;
+        long now = System.nanoTime();
+        long wait = lastSwapNanos + kFramePeriodNanos - now;
+        if (currentWave >= 0 && wait > 0) return wait;
+
+        while (pendingModes != 0) {
+            int port = Integer.numberOfTrailingZeros(pendingModes);
+            pendingModes &= pendingModes - 1;
+            pigpio.queue(PigpioConnection.CMD_MODES, port, 1);
+        }
+        pigpio.queue(PigpioConnection.CMD_WVAG, 0, 0, pulses, buildPulses());
+        int wave = pigpio.command(PigpioConnection.CMD_WVCRE, 0, 0);
+
+        pigpio.queue(PigpioConnection.CMD_WVTXM, wave, kWaveModeRepeatSync);
+        // the previous wave stopped at the end of the frame in which the current one was swapped in
+        if (previousWave >= 0) {
+            pigpio.queue(PigpioConnection.CMD_WVDEL, previousWave, 0);
+        }
+        pigpio.flush();
+
+        previousWave = currentWave;
+        currentWave = wave;
+        lastSwapNanos = now;
+        dirty = false;
+        return 0;
+    }
+
+    /**
+     * Forgets the waveforms and pin modes of the old connection so the next flush sets everything up
+     * again. Waveforms left on a pigpiod that survived the disconnect are not deleted.
+     */
+    synchronized void reconnect() {
+        pendingModes = pins;
+        currentWave = -1;
+        previousWave = -1;
+        dirty = true;
+    }
+
+    /**
+     * Fills {@link #pulses} with one frame: every active pin goes high together and each goes low
+     * after its own pulse width.
+     *
+     * @return the number of words used
+     */
+    private int buildPulses() {
+        int count = 0;
+        int active = 0;
+        for (int bits = pins; bits != 0; bits &= bits - 1) {
+            int port = Integer.numberOfTrailingZeros(bits);
+            if (pulseWidthUs[port] == 0) continue;
+            active |= 1 << port;
+            // insertion sort by width; there are at most 32 pins
+            int n = count++;
+            while (n > 0 && pulseWidthUs[order[n - 1]] > pulseWidthUs[port]) {
+                order[n] = order[n - 1];
+                n--;
+            }
+            order[n] = port;
+        }
+
+        int first = count == 0 ? kFramePeriodUs : pulseWidthUs[order[0]];
+        int words = putPulse(0, active, pins & ~active, first);
+        for (int n = 0; n < count; ) {
+            int width = pulseWidthUs[order[n]];
+            int off = 0;
+            while (n < count && pulseWidthUs[order[n]] == width) {
+                off |= 1 << order[n++];
+            }
+            int next = n < count ? pulseWidthUs[order[n]] : kFramePeriodUs;
+            words = putPulse(words, 0, off, next - width);
+        }
+        return words;
+    }
+
+    private int putPulse(int words, int on, int off, int delayUs) {
+        pulses[words] = on;
+        pulses[words + 1] = off;
+        pulses[words + 2] = delayUs;
+        return words + 3;
+    }
+}
@@ -0,0 +1,44 @@
+package frc.lib.robopilink;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+
+import com.diozero.api.GpioEventTrigger;
+import com.diozero.api.GpioPullUpDown;
+import com.diozero.api.PinInfo;
+import com.diozero.internal.provider.mock.MockDeviceFactory;
+import com.diozero.internal.spi.GpioDigitalInputDeviceInterface;
+
+/**
+ * A {@link MockDeviceFactory} whose digital inputs read levels set by {@link RoboPiLinkReplay}
+ * instead of the mock's own state.
+ */
+public class ReplayDeviceFactory extends MockDeviceFactory {
+    private volatile long m_levels = 0;
+
+    public void setInputLevel(int gpio, boolean level) {
+        long bit = 1L << gpio;
+        m_levels = level ? m_levels | bit : m_levels & ~bit;
+    }
+
+    @Override
+    public GpioDigitalInputDeviceInterface createDigitalInputDevice(String key, PinInfo pinInfo,
+            GpioPullUpDown pud, GpioEventTrigger trigger) {
+        GpioDigitalInputDeviceInterface device = super.createDigitalInputDevice(key, pinInfo, pud, trigger);
+        long bit = 1L << pinInfo.getDeviceNumber();
+        InvocationHandler handler = (proxy, method, args) -> {
+            if (method.getName().equals("getValue")) {
+                return (m_levels & bit) != 0;
+            }
+            try {
+                return method.invoke(device, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        };
+        return (GpioDigitalInputDeviceInterface) Proxy.newProxyInstance(
+            GpioDigitalInputDeviceInterface.class.getClassLoader(),
+            new Class<?>[] {GpioDigitalInputDeviceInterface.class}, handler);
+    }
+}
@@ -0,0 +1,219 @@
+package frc.lib.robopilink;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.wpi.first.wpilibj.DriverStation;
+
+/**
+ * Drives several Raspberry Pis from one robot program.
+ *
+ * <p>Every Pi gets its own {@link RoboPiLink}, with its own sockets, command runner and cycle
+ * thread, so one Pi's network never blocks another's. A single fleet loop paces all of them: each
+ * cycle it starts every Pi's cycle, waits for them at a barrier, and then releases all of their
+ * output writes together so outputs on different boards change at the same time.
+ *
+ * <p>The barrier has a deadline. A Pi that has not finished its cycle by then is counted as late and
+ * sends its writes as soon as it finishes, instead of holding the other Pis back.
+ */
+public class RoboPiFleet {
+    private final Map<String, Member> m_members = new LinkedHashMap<>();
+    private volatile Member[] m_memberArray = new Member[0];
+
+    private LoopTimer m_loopTimer = new LoopTimer(RoboPiLink.kDefaultLoopPeriodSeconds);
+    private long m_barrierTimeoutNanos = (long) (RoboPiLink.kDefaultLoopPeriodSeconds * 0.5e9);
+
+    private volatile boolean m_disabled = true;
+    private volatile long m_barrierCycle = 0;
+
+    /**
+     * Connects to a Pi and adds it to the fleet. Devices for it are created with the returned link,
+     * as with a single Pi.
+     */
+    public synchronized RoboPiLink addPi(String host, boolean simulate) {
+        if (m_members.containsKey(host)) {
+            throw new RuntimeException("Pi " + host + " is already part of the fleet");
+        }
+        RoboPiLink link = RoboPiLink.remotePi(host, simulate);
+        link.setWriteGating(true);
+        m_members.put(host, new Member(host, link));
+        m_memberArray = m_members.values().toArray(new Member[0]);
+        return link;
+    }
+
+    public synchronized RoboPiLink getPi(String host) {
+        Member member = m_members.get(host);
+        if (member == null) {
+            throw new RuntimeException("Pi " + host + " is not part of the fleet");
+        }
+        return member.m_link;
+    }
+
+    /**
+     * Gets the device registered on {@code port} of the Pi {@code host}, if there is one.
+     */
+    public Optional<PigpiojDevice> getDevice(String host, int port) {
+        return getPi(host).getDevice(port);
+    }
+
+    /**
+     * Gets the number of cycles in which the Pi missed the barrier deadline.
+     */
+    public long getLateCycles(String host) {
+        synchronized (this) {
+            Member member = m_members.get(host);
+            return member == null ? 0 : member.m_lateCycles;
+        }
+    }
+
+    public LoopTimer getLoopTimer() {
+        return m_loopTimer;
+    }
+
+    /**
+     * Calls {@link RoboPiLink#publishCommands()} on every Pi.
+     */
+    public void publishCommands() {
+        for (Member member : m_memberArray) {
+            member.m_link.publishCommands();
+        }
+    }
+
+    /**
+     * Calls {@link RoboPiLink#snapshotInputs()} on every Pi.
+     */
+    public void snapshotInputs() {
+        for (Member member : m_memberArray) {
+            member.m_link.snapshotInputs();
+        }
+    }
+
+    /**
+     * Starts the fleet loop. Do not also call {@link RoboPiLink#startMainLoop()} on the fleet's links.
+     *
+     * @param periodSeconds time between the start of each cycle
+     * @param barrierTimeoutSeconds how long to wait for slow Pis before releasing the others' writes
+     */
+    public void startMainLoop(double periodSeconds, double barrierTimeoutSeconds) {
+        m_loopTimer = new LoopTimer(periodSeconds);
+        m_barrierTimeoutNanos = (long) (barrierTimeoutSeconds * 1e9);
+        startMainLoop();
+    }
+
+    public void startMainLoop() {
+        provisionDevices();
+        for (Member member : m_memberArray) {
+            member.start();
+        }
+        Thread loop = new Thread(mainLoop(), "RoboPiFleet");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    /**
+     * Sets up the devices of every link that deferred provisioning, all Pis at the same time.
+     */
+    public void provisionDevices() {
+        Member[] members = m_memberArray;
+        Thread[] threads = new Thread[members.length];
+        for (int n = 0; n < members.length; n++) {
+            threads[n] = new Thread(members[n].m_link::provisionDevices, "RoboPiFleet provisioning " + members[n].m_host);
+            threads[n].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Runnable mainLoop() {
+        return () -> {
+            LoopTimer timer = m_loopTimer;
+            Thread self = Thread.currentThread();
+            long cycle = 0;
+            while (true) {
+                timer.waitForNextCycle();
+                cycle++;
+                m_disabled = DriverStation.isDisabled() || DriverStation.isEStopped();
+
+                Member[] members = m_memberArray;
+                for (int n = 0; n < members.length; n++) {
+                    members[n].requestCycle(cycle, self);
+                }
+
+                long deadline = System.nanoTime() + m_barrierTimeoutNanos;
+                for (int n = 0; n < members.length; n++) {
+                    long remaining;
+                    while (members[n].m_completedCycle < cycle && (remaining = deadline - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(remaining);
+                    }
+                }
+
+                // publish the barrier before checking completions; a member finishing at the same
+                // time then sees it and releases itself, so no cycle's writes are stranded
+                m_barrierCycle = cycle;
+                for (int n = 0; n < members.length; n++) {
+                    if (members[n].m_completedCycle >= cycle) {
+                        members[n].m_link.releaseWrites();
+                    } else {
+                        members[n].m_lateCycles++;
+                    }
+                }
+            }
+        };
+    }
+
+    private class Member {
+        private final String m_host;
+        private final RoboPiLink m_link;
+        private volatile long m_requestedCycle = 0;
+        private volatile long m_completedCycle = 0;
+        private volatile long m_lateCycles = 0;
+        private volatile Thread m_fleetThread;
+        private Thread m_thread;
+
+        Member(String host, RoboPiLink link) {
+            m_host = host;
+            m_link = link;
+        }
+
+        void start() {
+            m_thread = new Thread(this::run, "RoboPiFleet " + m_host);
+            m_thread.setDaemon(true);
+            m_thread.start();
+        }
+
+        void requestCycle(long cycle, Thread fleetThread) {
+            m_fleetThread = fleetThread;
+            m_requestedCycle = cycle;
+            LockSupport.unpark(m_thread);
+        }
+
+        private void run() {
+            long done = 0;
+            while (true) {
+                long cycle = m_requestedCycle;
+                if (cycle == done) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                try {
+                    m_link.runCycle(m_disabled);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                done = cycle;
+                m_completedCycle = cycle;
+                if (m_barrierCycle >= cycle) {
+                    m_link.releaseWrites();
+                }
+                LockSupport.unpark(m_fleetThread);
+            }
+        }
+    }
+}
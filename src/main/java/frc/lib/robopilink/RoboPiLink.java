@@ -1,11 +1,27 @@
 package frc.lib.robopilink;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.OptionalInt;
 import java.util.Queue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongBinaryOperator;
+import java.util.function.Supplier;
+import java.util.concurrent.locks.LockSupport;
 
+import com.diozero.api.DeviceMode;
 import com.diozero.api.DigitalOutputDevice;
+import com.diozero.api.RuntimeIOException;
 import com.diozero.internal.provider.mock.MockDeviceFactory;
 import com.diozero.internal.provider.pigpioj.PigpioJDeviceFactory;
 import com.diozero.internal.spi.BaseNativeDeviceFactory;
@@ -15,80 +31,593 @@ import edu.wpi.first.wpilibj.DriverStation;
 
 public class RoboPiLink {
 
+    public static final double kDefaultLoopPeriodSeconds = 0.005;
+
     private CopyOnWriteArrayList<PigpiojDevice> m_devices = new CopyOnWriteArrayList<PigpiojDevice>();
 
-    private CopyOnWriteArrayList<Integer> m_devicePorts = new CopyOnWriteArrayList<Integer>();
+    // snapshot of m_devices the main loop can walk without allocating an iterator
+    private volatile PigpiojDevice[] m_deviceArray = new PigpiojDevice[0];
+    // the same devices split for phase-locked cycles, which service them at different times
+    private volatile PigpiojDevice[] m_inputDeviceArray = new PigpiojDevice[0];
+    private volatile PigpiojDevice[] m_outputDeviceArray = new PigpiojDevice[0];
+    // which of the above are serviced each cycle
+    private final Map<PigpiojDevice, ServiceTier> m_serviceTiers = new IdentityHashMap<>();
+    private volatile DeviceSchedule m_schedule = new DeviceSchedule(new PigpiojDevice[0], d -> ServiceTier.FAST, d -> d);
+    private volatile DeviceSchedule m_inputSchedule = m_schedule;
+    private volatile DeviceSchedule m_outputSchedule = m_schedule;
+    private final DeviceSchedule.Service m_enabledService = this::enabledPeriodic;
+    private final DeviceSchedule.Service m_disabledService = this::disabledPeriodic;
+
+    private volatile RPLServoGroup[] m_servoGroups = new RPLServoGroup[0];
+
+    // outputs committed and written together; their write requests wait in m_groupStagedPorts until
+    // the cycle's devices have all been serviced
+    private volatile RPLOutputGroup[] m_outputGroups = new RPLOutputGroup[0];
+    private volatile long m_groupedPorts = 0;
+    private final AtomicLong m_groupStagedPorts = new AtomicLong();
+    // ports of open output group transactions, robot thread only
+    private long m_transactionPorts = 0;
+    // set while the runner writes a group, so digital writes go in its bracket rather than the bank masks
+    private boolean m_writingGroup = false;
+    // commands flushBatch must leave room for after an output group: heartbeat, bank writes, input read
+    private static final int kBatchReserve = 8;
+
+    // devices declared while provisioning is deferred, set up together by provisionDevices()
+    private volatile boolean m_deferProvisioning = false;
+    private final List<PigpiojDevice> m_unprovisioned = new ArrayList<>();
+    private volatile Thread m_warmUp;
+    private static final int kWarmUpRoundTrips = 8;
+    // most commands one device queues to set itself up
+    static final int kMaxSetupCommands = 8;
+    private final long m_createdNanos = System.nanoTime();
+
+    // commanded outputs from robot code to the main loop, and input values back, indexed by port;
+    // each side works from its own copy taken at a well defined point
+    private final StateExchange m_commands = new StateExchange(64);
+    private final double[] m_loopCommands = new double[64];
+    private final StateExchange m_inputs = new StateExchange(64);
+    private final double[] m_robotInputs = new double[64];
+    private volatile boolean m_batchedExchange = false;
 
     private Queue<Runnable> m_commandQueue = new ConcurrentLinkedQueue<>();
 
-    private DigitalOutputDevice m_ping_pin;
+    // devices indexed by port, and the ports with a write waiting for the command runner
+    private final PigpiojDevice[] m_devicesByPort = new PigpiojDevice[64];
+    private final AtomicLong m_pendingPorts = new AtomicLong();
+    private static final LongBinaryOperator kOr = (a, b) -> a | b;
+
+    // when gated, writes wait in m_stagedPorts until releaseWrites() hands them to the runner
+    private volatile boolean m_gateWrites = false;
+    private final AtomicLong m_stagedPorts = new AtomicLong();
+
+    // every submission bumps m_requestSeq; the runner publishes how far it has written
+    private final AtomicLong m_requestSeq = new AtomicLong();
+    private volatile long m_completedSeq = 0;
+    private final Object m_flushLock = new Object();
+    private volatile int m_flushWaiters = 0;
+
+    private Thread m_commandThread;
+
+    private volatile DigitalOutputDevice m_ping_pin;
+
+    private OptionalInt m_pingPort;
+
+    private volatile BaseNativeDeviceFactory m_deviceFactory;
+
+    private final PinRegistry m_pins;
+
+    private LoopTimer m_loopTimer = new LoopTimer(kDefaultLoopPeriodSeconds);
+
+    private final Heartbeat m_heartbeat = new Heartbeat();
+
+    private RoboPiLinkTelemetry m_telemetry;
+    private final RoboPiLinkStats m_stats = new RoboPiLinkStats(m_loopTimer, m_heartbeat);
+
+    // when the main loop next asks for a heartbeat, and the level the runner last sent on the ping pin
+    private long m_nextHeartbeatNanos = 0;
+    private volatile boolean m_heartbeatRequested = false;
+    private boolean m_pingLevel = false;
+
+    private boolean m_previouslyDisabled = true;
+
+    // phase-locked cycles: when the robot thread started reading inputs and how long that took, and
+    // the request the runner has to complete before the outputs computed from them count as sent
+    private long m_phaseStartNanos = 0;
+    // when the current cycle started, as time based input filtering sees it
+    private long m_cycleNanos = 0;
+    private long m_inputPhaseNanos = 0;
+    private volatile long m_actuationStartNanos = 0;
+    private final AtomicLong m_actuationSeq = new AtomicLong(Long.MAX_VALUE);
+
+    private volatile PigpioConnection m_pigpio;
+
+    // extra connections so input reads and servo waveforms do not wait behind the runner's batch
+    private static final int kInputLane = 0;
+    private static final int kWaveLane = 1;
+    private static final int kPoolLanes = 2;
+    private static final long kLaneTimeoutNanos = 1_000_000_000L;
+    // how soon to try again when the wave lane is still busy with a pass that timed out
+    private static final long kBusyLaneRetryNanos = 1_000_000L;
+    private volatile PigpioConnectionPool m_pool;
+    private volatile long m_waveRetryNanos = 0;
+    private final PigpioConnectionPool.Task m_flushWaves = pigpio -> m_waveRetryNanos = flushServoGroups(m_servoGroups, pigpio);
+
+    private PigpioNotifier m_notifier;
+
+    // robopilinkd's encoder counter, opened for the first encoder; m_noEncoderCounter remembers
+    // that robopilinkd could not be reached until the next reconnect
+    private EncoderCounter m_encoderCounter;
+    private boolean m_noEncoderCounter = false;
+    private int m_robopilinkdPort = Failsafe.kDefaultPort;
+
+    // null when the link cannot reconnect, for example with mock devices
+    private volatile ConnectionSupervisor m_supervisor;
+
+    private volatile Failsafe m_failsafe;
+
+    // null when not recording; m_recording counts recordings started so devices can tell them apart
+    private volatile RoboPiLinkRecorder m_recorder;
+    private volatile int m_recording = 0;
 
-    private BaseNativeDeviceFactory m_deviceFactory;
+    // input pins read in bulk with the runner's batch instead of one device read each
+    private volatile long m_polledInputs = 0;
+    private volatile long m_inputLevels = 0;
+    private volatile boolean m_inputReadRequested = false;
+
+    // pending digital writes, only touched by the command runner thread
+    private int m_bankSet1 = 0;
+    private int m_bankClear1 = 0;
+    private int m_bankSet2 = 0;
+    private int m_bankClear2 = 0;
 
     public RoboPiLink(BaseNativeDeviceFactory deviceFactory, OptionalInt pingPin) {
+        this(deviceFactory, pingPin, Optional.empty());
+    }
+
+    /**
+     * @param deviceFactory diozero factory used to create and configure each device
+     * @param pingPin pin toggled by the heartbeat to keep the watchdog on the Pi from tripping
+     * @param pigpio raw pigpiod connection used for batched multi-pin operations. If empty, every
+     *     write goes through its own diozero device instead.
+     */
+    public RoboPiLink(BaseNativeDeviceFactory deviceFactory, OptionalInt pingPin, Optional<PigpioConnection> pigpio) {
         m_deviceFactory = deviceFactory;
+        m_pigpio = pigpio.orElse(null);
+        m_pins = new PinRegistry(deviceFactory.getBoardPinInfo());
+        m_pingPort = pingPin;
 
-        new Thread(commandRunner()).start();
+        m_commandThread = new Thread(commandRunner(), "RoboPiLink commands");
+        m_commandThread.setDaemon(true);
+        m_commandThread.start();
 
         if (pingPin.isPresent()) {
+            m_pins.claim(pingPin.getAsInt(), DeviceMode.DIGITAL_OUTPUT);
             m_ping_pin = new DigitalOutputDevice.Builder(pingPin.getAsInt()).setDeviceFactory(m_deviceFactory).build();
-            m_devicePorts.add(pingPin.getAsInt());
-            new Thread(pinger()).start();
         }
     }
 
     public static RoboPiLink remotePi(String host, boolean simulate) {
+        return remotePi(host, PigpioConnection.kDefaultPort, simulate);
+    }
+
+    /**
+     * @param host hostname of the Pi running pigpiod
+     * @param port pigpiod socket port, for example the port of the {@code MockPigpiod} stand-in the
+     *     tests run on localhost
+     * @param simulate if true, skip the network entirely and use diozero's mock devices
+     */
+    public static RoboPiLink remotePi(String host, int port, boolean simulate) {
         if (simulate) {
             MockDeviceFactory mock = new MockDeviceFactory();
             BoardPinInfo info = mock.getBoardPinInfo();
             new MockBoardConfigurator().configure(info);
             return new RoboPiLink(mock, OptionalInt.empty());
         } else {
-            return new RoboPiLink(PigpioJDeviceFactory.newSocketInstance(host), OptionalInt.of(2));
+            PigpioConnection pigpio;
+            try {
+                pigpio = new PigpioConnection(host, port);
+            } catch (IOException e) {
+                throw new RuntimeException("could not connect to pigpiod on " + host, e);
+            }
+            RoboPiLink link = new RoboPiLink(PigpioJDeviceFactory.newSocketInstance(host, port), OptionalInt.of(2), Optional.of(pigpio));
+            link.enableReconnect(
+                () -> PigpioJDeviceFactory.newSocketInstance(host, port),
+                () -> new PigpioConnection(host, port));
+            return link;
+        }
+    }
+
+    /**
+     * Makes the link bring itself back when the connection to the Pi is lost. Until it is back, the
+     * main loop stops servicing devices, every device reports {@link PigpiojDevice#isStale()}, and
+     * writes wait. Once the new connections are open every pin's mode and newest output are applied
+     * again.
+     *
+     * @param deviceFactory opens a new diozero factory to the Pi
+     * @param pigpio opens a new raw pigpiod connection, or returns null if the link has none
+     */
+    public void enableReconnect(Supplier<BaseNativeDeviceFactory> deviceFactory, Callable<PigpioConnection> pigpio) {
+        m_supervisor = new ConnectionSupervisor(() -> reconnect(deviceFactory, pigpio), m_stats);
+    }
+
+    /**
+     * Whether the link is currently connected to the Pi. Always true if reconnecting is not enabled.
+     */
+    public boolean isConnected() {
+        ConnectionSupervisor supervisor = m_supervisor;
+        return supervisor == null || supervisor.isConnected();
+    }
+
+    public Optional<ConnectionSupervisor> getSupervisor() {
+        return Optional.ofNullable(m_supervisor);
+    }
+
+    private int generation() {
+        ConnectionSupervisor supervisor = m_supervisor;
+        return supervisor == null ? 0 : supervisor.getGeneration();
+    }
+
+    /**
+     * Handles an exception thrown while talking to the Pi on connection {@code generation}.
+     */
+    private void reportFailure(int generation, Exception e) {
+        if (isCommandError(e)) {
+            m_stats.recordCommandError();
+        }
+        ConnectionSupervisor supervisor = m_supervisor;
+        if (supervisor == null || !isConnectionFailure(e)) {
+            e.printStackTrace();
+            return;
+        }
+        if (supervisor.reportFailure(generation, e)) {
+            PigpiojDevice[] devices = m_deviceArray;
+            for (int n = 0; n < devices.length; n++) {
+                devices[n].markStale();
+            }
+        }
+    }
+
+    /**
+     * Arms robopilinkd's failsafe with {@code failsafe}'s timeout and safe states, covering every pin
+     * claimed so far, so call it after creating the devices. The heartbeat's watchdog timeout is
+     * kept at or below the failsafe's. After a trip the link reconnects, which restores every pin,
+     * if reconnecting is enabled.
+     *
+     * <p>Heartbeats are only sent by a cycle of the loop, so the timeout must fit
+     * {@link Heartbeat#kBeatsPerTimeout} loop periods; start the main loop with its period, or call
+     * {@link #setPhaseLockedPeriod(double)}, first.
+     *
+     * @throws IllegalArgumentException if the failsafe's timeout is shorter than that
+     */
+    public synchronized void enableFailsafe(Failsafe failsafe) {
+        if (m_pingPort.isEmpty()) {
+            throw new RuntimeException("the failsafe needs a heartbeat pin on RPi");
+        }
+        double timeout = failsafe.getTimeoutSeconds();
+        checkFailsafeTimeout(timeout, m_loopTimer.getPeriodSeconds());
+        m_heartbeat.setTimeoutLimits(Math.min(Heartbeat.kDefaultMinTimeoutSeconds, timeout), timeout);
+        try {
+            connectFailsafe(failsafe);
+        } catch (IOException e) {
+            throw new RuntimeException("could not configure the failsafe on RPi", e);
+        }
+        m_failsafe = failsafe;
+        m_stats.setFailsafe(failsafe);
+    }
+
+    private static void checkFailsafeTimeout(double timeout, double periodSeconds) {
+        if (timeout < Heartbeat.kBeatsPerTimeout * periodSeconds) {
+            throw new IllegalArgumentException("failsafe timeout of " + timeout + " s leaves no room for "
+                + Heartbeat.kBeatsPerTimeout + " heartbeats at a loop period of " + periodSeconds + " s");
+        }
+    }
+
+    public Optional<Failsafe> getFailsafe() {
+        return Optional.ofNullable(m_failsafe);
+    }
+
+    private void connectFailsafe(Failsafe failsafe) throws IOException {
+        int generation = generation();
+        failsafe.connect(m_pingPort.getAsInt(), m_pins.getClaimedMask(),
+            latencyNanos -> {
+                System.out.println("RoboPiLink failsafe tripped on the Pi, pins safe " + latencyNanos / 1000 + " us after the watchdog fired");
+                // the pins are no longer what the devices think they are
+                reportFailure(generation(), new IOException("failsafe tripped on RPi"));
+            },
+            e -> reportFailure(generation, e));
+    }
+
+    private static boolean isConnectionFailure(Throwable e) {
+        // a rejected command leaves the connection working, and reconnecting would only send it again
+        if (isCommandError(e)) return false;
+        return e instanceof IOException || e instanceof RuntimeIOException;
+    }
+
+    private static boolean isCommandError(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof PigpioCommandException) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Replaces every connection to the Pi and restores each device on it. Called by the
+     * {@link ConnectionSupervisor} with the main loop and command runner idle.
+     */
+    private synchronized void reconnect(Supplier<BaseNativeDeviceFactory> deviceFactory, Callable<PigpioConnection> pigpio) throws Exception {
+        // the old connections are already broken, so errors closing them are expected
+        if (m_notifier != null) {
+            try {
+                m_notifier.close();
+            } catch (Exception e) {}
+            m_notifier = null;
+        }
+        if (m_pigpio != null) {
+            try {
+                m_pigpio.close();
+            } catch (Exception e) {}
+        }
+        if (m_encoderCounter != null) {
+            try {
+                m_encoderCounter.close();
+            } catch (Exception e) {}
+            m_encoderCounter = null;
+        }
+        m_noEncoderCounter = false;
+        try {
+            m_deviceFactory.close();
+        } catch (Exception e) {}
+
+        m_deviceFactory = deviceFactory.get();
+        m_pigpio = pigpio.call();
+        if (m_pool != null) {
+            m_pool.reconnect();
+        }
+        m_bankSet1 = m_bankClear1 = m_bankSet2 = m_bankClear2 = 0;
+        m_heartbeat.resetApplied();
+
+        if (m_pingPort.isPresent()) {
+            m_ping_pin = new DigitalOutputDevice.Builder(m_pingPort.getAsInt()).setDeviceFactory(m_deviceFactory).build();
+        }
+        Failsafe failsafe = m_failsafe;
+        if (failsafe != null) {
+            failsafe.close();
+            connectFailsafe(failsafe);
+        }
+        RPLServoGroup[] groups = m_servoGroups;
+        for (int n = 0; n < groups.length; n++) {
+            groups[n].reconnect();
+        }
+        PigpiojDevice[] devices = m_deviceArray;
+        setUp(devices);
+        for (int n = 0; n < devices.length; n++) {
+            devices[n].reconnect(m_deviceFactory);
+        }
+    }
+
+    /**
+     * Holds devices created from here on back from the Pi until {@link #provisionDevices()}, which
+     * sets all of them up together: with a raw pigpiod connection that is a single batch of
+     * commands, however many pins there are, instead of several round trips per device. Meanwhile
+     * the connection is warmed up in the background, so call this right after creating the link and
+     * before building the rest of the robot.
+     */
+    public synchronized void deferProvisioning() {
+        m_deferProvisioning = true;
+        if (m_pigpio != null && m_warmUp == null) {
+            m_warmUp = new Thread(this::warmUp, "RoboPiLink warm-up");
+            m_warmUp.setDaemon(true);
+            m_warmUp.start();
+        }
+    }
+
+    /**
+     * Sets up every device declared since {@link #deferProvisioning()} and starts servicing them.
+     * Called by {@link #startMainLoop()} and {@link #readInputs()} if it has not been called yet.
+     * Devices created afterwards are set up as they are created again.
+     */
+    public void provisionDevices() {
+        // outside the lock, which the warm-up takes to open the notifier
+        Thread warmUp = m_warmUp;
+        if (warmUp != null) {
+            try {
+                warmUp.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long start = System.nanoTime();
+        PigpiojDevice[] devices;
+        synchronized (this) {
+            if (!m_deferProvisioning) return;
+            devices = m_unprovisioned.toArray(new PigpiojDevice[0]);
+            m_unprovisioned.clear();
+            m_deferProvisioning = false;
+            provision(devices);
+            for (PigpiojDevice device : devices) {
+                addDevice(device);
+            }
+        }
+        long end = System.nanoTime();
+        m_stats.recordStartup(end - start, end - m_createdNanos);
+        System.out.println("RoboPiLink set up " + devices.length + " devices in " + (end - start) / 1_000_000
+            + " ms, " + (end - m_createdNanos) / 1_000_000 + " ms after connecting");
+    }
+
+    /**
+     * Opens the notification socket and sends a few commands while robot code is still declaring
+     * devices, so the first real batch does not pay for connection setup and cold code paths.
+     */
+    private void warmUp() {
+        try {
+            openNotifier();
+            for (int n = 0; n < kWarmUpRoundTrips; n++) {
+                m_pigpio.command(PigpioConnection.CMD_TICK, 0, 0);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void provision(PigpiojDevice[] devices) {
+        try {
+            setUp(devices);
+        } catch (IOException e) {
+            throw new RuntimeException("could not set up devices on RPi", e);
+        }
+        for (PigpiojDevice device : devices) {
+            device.provision(m_deviceFactory);
+        }
+    }
+
+    /**
+     * Sends every device's raw setup commands, reads the starting input levels and watches every
+     * input that can be notified, all in as few round trips as the pin count allows.
+     */
+    private void setUp(PigpiojDevice[] devices) throws IOException {
+        PigpioConnection pigpio = m_pigpio;
+        if (pigpio == null) return;
+        synchronized (pigpio) {
+            int sent = 0;
+            for (int n = 0; n < devices.length; n++) {
+                // send the batch before it could fill up partway through a device, whose results
+                // would then be lost; the 2 leave room for the input read
+                if (pigpio.getQueuedCount() + kMaxSetupCommands + 2 > PigpioConnection.kMaxBatch) {
+                    pigpio.flush();
+                    readSetups(devices, sent, n, pigpio);
+                    sent = n;
+                }
+                devices[n].queueSetup(pigpio);
+            }
+            m_inputLevels = pigpio.readBanks();
+            readSetups(devices, sent, devices.length, pigpio);
+            pigpio.flush();
+        }
+        int watchable = (int) m_pins.getDigitalInputMask();
+        if (watchable != 0) {
+            openNotifier().watchAll(watchable);
+        }
+    }
+
+    private static void readSetups(PigpiojDevice[] devices, int from, int to, PigpioConnection pigpio) throws IOException {
+        for (int n = from; n < to; n++) {
+            devices[n].readSetup(pigpio);
         }
     }
 
     public void startMainLoop() {
+        provisionDevices();
         new Thread(mainLoop()).start();
     }
 
-    private Runnable pinger() {
-        return () -> {
+    /**
+     * Starts the main loop running at a fixed rate.
+     * 
+     * @param periodSeconds time between the start of each loop cycle, e.g. 0.005 for 200 Hz
+     */
+    public void startMainLoop(double periodSeconds) {
+        m_loopTimer = new LoopTimer(periodSeconds);
+        m_stats.setLoopTimer(m_loopTimer);
+        startMainLoop();
+    }
+
+    /**
+     * Sets how often robot code calls {@link #readInputs()} and {@link #writeOutputs()} when the link
+     * runs phase-locked, e.g. 0.02 for {@code TimedRobot}'s default. Heartbeats only go out from
+     * {@link #writeOutputs()} in this mode, so the failsafe's timeout is checked against this period,
+     * and the slower service tiers are budgeted by it.
+     *
+     * @throws IllegalArgumentException if an armed failsafe's timeout is too short for it
+     */
+    public synchronized void setPhaseLockedPeriod(double periodSeconds) {
+        LoopTimer timer = new LoopTimer(periodSeconds);
+        if (m_failsafe != null) {
+            checkFailsafeTimeout(m_failsafe.getTimeoutSeconds(), periodSeconds);
+        }
+        m_loopTimer = timer;
+        m_stats.setLoopTimer(timer);
+    }
+
+    /**
+     * Gets the timer pacing the main loop, which records overruns and per-cycle jitter.
+     */
+    public LoopTimer getLoopTimer() {
+        return m_loopTimer;
+    }
+
+    /**
+     * Gets the cycle time, per device latency and queue statistics of this link.
+     */
+    public RoboPiLinkStats getStats() {
+        return m_stats;
+    }
+
+    /**
+     * Gets every device being serviced. The array is replaced, never changed, when devices are added.
+     */
+    PigpiojDevice[] getDeviceArray() {
+        return m_deviceArray;
+    }
+
+    /**
+     * Starts publishing {@link #getStats()} to NetworkTables from a background thread.
+     *
+     * @param periodSeconds time between updates; a few times a second is plenty
+     */
+    public void startStatsPublishing(double periodSeconds) {
+        startPublisher("RoboPiLink stats", periodSeconds, m_stats::publish);
+    }
+
+    /**
+     * Starts publishing the state of every device to NetworkTables from a background thread, only
+     * sending values that changed. See {@link RoboPiLinkTelemetry}.
+     *
+     * @param periodSeconds time between updates
+     */
+    public synchronized RoboPiLinkTelemetry startTelemetry(double periodSeconds) {
+        if (m_telemetry != null) return m_telemetry;
+        RoboPiLinkTelemetry telemetry = new RoboPiLinkTelemetry(this, periodSeconds);
+        startPublisher("RoboPiLink telemetry", periodSeconds, telemetry::publish);
+        m_telemetry = telemetry;
+        return telemetry;
+    }
+
+    /**
+     * Runs {@code publish} every {@code periodSeconds} on a daemon thread of its own, carrying on
+     * past any exception it throws.
+     */
+    private static void startPublisher(String name, double periodSeconds, Runnable publish) {
+        long periodMillis = (long) (periodSeconds * 1000);
+        Thread publisher = new Thread(() -> {
             while (true) {
                 try {
-                    sendCommand(() -> m_ping_pin.toggle());
-                    Thread.sleep(100);
+                    publish.run();
+                    Thread.sleep(periodMillis);
+                } catch (InterruptedException e) {
+                    return;
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
             }
-        };
+        }, name);
+        publisher.setDaemon(true);
+        publisher.start();
+    }
+
+    /**
+     * Gets the device telemetry, or null if {@link #startTelemetry(double)} was not called.
+     */
+    public synchronized RoboPiLinkTelemetry getTelemetry() {
+        return m_telemetry;
     }
 
     private Runnable mainLoop() {
-            return () -> {
-            boolean previouslyDisabled = true;
+        return () -> {
+            LoopTimer timer = m_loopTimer;
             while (true) {
+                timer.waitForNextCycle();
                 try {
-                    boolean currentlyDisabled = DriverStation.isDisabled() || DriverStation.isEStopped();
-                    if (currentlyDisabled && !previouslyDisabled) {
-                        // Disabled Init
-                        disabledInit();
-                        System.out.println("disabled init");
-                    } else if (!currentlyDisabled && previouslyDisabled) {
-                        // Enabled Init
-                        enabledInit();
-                        System.out.println("enabled init");
-                    } else if (currentlyDisabled && previouslyDisabled) {
-                        // Disabled Periodic
-                        disabledPeriodic();
-                        //System.out.println("disabled periodic");
-                    } else if (!currentlyDisabled && !previouslyDisabled) {
-                        // Enabled Periodic
-                        enabledPeriodic();
-                        //System.out.println("enabled periodic");
-                    }
-                    previouslyDisabled = currentlyDisabled;
+                    runCycle(DriverStation.isDisabled() || DriverStation.isEStopped());
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -96,66 +625,1062 @@ public class RoboPiLink {
         };
     }
 
+    /**
+     * Runs one cycle of the disabled/enabled state machine. Normally called by the main loop; only
+     * call this directly (for example from a benchmark) when the main loop is not running.
+     */
+    void runCycle(boolean currentlyDisabled) {
+        runCycle(currentlyDisabled, System.nanoTime());
+    }
+
+    /**
+     * Runs one cycle as if it started at {@code cycleNanos}, on the {@link System#nanoTime()} scale.
+     * Time based input filtering goes by this rather than the clock, so a replay can run on the
+     * recorded times.
+     */
+    void runCycle(boolean currentlyDisabled, long cycleNanos) {
+        // nothing can be read or written until the supervisor has the connection back, and it
+        // waits for the cycle to finish before replacing the connection
+        ConnectionSupervisor supervisor = m_supervisor;
+        if (supervisor != null && !supervisor.acquire()) return;
+        try {
+            int generation = generation();
+            long start = System.nanoTime();
+            m_cycleNanos = cycleNanos;
+            record(RoboPiLinkRecorder.kCycle, 0, currentlyDisabled ? 1 : 0, cycleNanos);
+            try {
+                m_commands.snapshot(m_loopCommands);
+                exchangeInputs();
+                runStateMachine(currentlyDisabled, m_schedule, start);
+                releaseGroupWrites();
+                m_inputs.publish();
+                requestHeartbeatIfDue(start);
+            } catch (RuntimeException e) {
+                if (!isConnectionFailure(e) || m_supervisor == null) throw e;
+                reportFailure(generation, e);
+                return;
+            }
+            m_stats.recordCycleTime(System.nanoTime() - start);
+        } finally {
+            if (supervisor != null) supervisor.release();
+        }
+    }
+
+    /**
+     * Runs the first half of a phase-locked cycle on the calling thread: reads every input in one
+     * batch and makes the levels available to robot code. Call from the robot's periodic method just
+     * before {@code CommandScheduler.run()}, and {@link #writeOutputs()} just after it, instead of
+     * starting the main loop.
+     *
+     * <p>Inputs are then never older than the read's round trip when commands use them, and outputs
+     * go out as soon as the commands have run, rather than both waiting on a separately timed loop.
+     * The time from here until the resulting writes have been sent is recorded in
+     * {@link RoboPiLinkStats#getActuationLatency()}. This mode implies
+     * {@link #setBatchedExchange(boolean)}. The heartbeat is only sent from {@link #writeOutputs()},
+     * so tell the link how often that is with {@link #setPhaseLockedPeriod(double)} before arming
+     * the failsafe.
+     */
+    public void readInputs() {
+        if (m_deferProvisioning) {
+            provisionDevices();
+        }
+        m_batchedExchange = true;
+        ConnectionSupervisor supervisor = m_supervisor;
+        if (supervisor != null && !supervisor.acquire()) return;
+        try {
+            boolean currentlyDisabled = DriverStation.isDisabled() || DriverStation.isEStopped();
+            int generation = generation();
+            long start = System.nanoTime();
+            m_phaseStartNanos = start;
+            m_cycleNanos = start;
+            record(RoboPiLinkRecorder.kCycle, 0, currentlyDisabled ? 1 : 0, start);
+            try {
+                exchangeInputs();
+                // outputs are left for writeOutputs(), except that a mode change switches them right away
+                runStateMachine(currentlyDisabled, m_inputSchedule, start);
+                releaseGroupWrites();
+                m_inputs.publish();
+            } catch (RuntimeException e) {
+                if (!isConnectionFailure(e) || m_supervisor == null) throw e;
+                reportFailure(generation, e);
+            }
+            snapshotInputs();
+            m_inputPhaseNanos = System.nanoTime() - start;
+        } finally {
+            if (supervisor != null) supervisor.release();
+        }
+    }
+
+    /**
+     * Runs the second half of a phase-locked cycle: hands the commands robot code just set to the
+     * command runner. Returns without waiting for them to be sent.
+     */
+    public void writeOutputs() {
+        publishCommands();
+        ConnectionSupervisor supervisor = m_supervisor;
+        if (supervisor != null && !supervisor.acquire()) return;
+        try {
+            int generation = generation();
+            long start = System.nanoTime();
+            long seq = m_requestSeq.get();
+            try {
+                m_commands.snapshot(m_loopCommands);
+                if (!m_previouslyDisabled) {
+                    m_outputSchedule.run(m_enabledService, start, m_loopTimer.getPeriodNanos(), m_stats);
+                    releaseGroupWrites();
+                }
+                requestHeartbeatIfDue(start);
+            } catch (RuntimeException e) {
+                if (!isConnectionFailure(e) || m_supervisor == null) throw e;
+                reportFailure(generation, e);
+                return;
+            }
+            long target = m_requestSeq.get();
+            if (target != seq) {
+                m_actuationStartNanos = m_phaseStartNanos;
+                m_actuationSeq.set(target);
+            }
+            m_stats.recordCycleTime(m_inputPhaseNanos + System.nanoTime() - start);
+        } finally {
+            if (supervisor != null) supervisor.release();
+        }
+    }
+
+    /**
+     * Runs init hooks on every device when the robot changes mode, and otherwise the periodic hooks
+     * of {@code periodicDevices}.
+     */
+    private void runStateMachine(boolean currentlyDisabled, DeviceSchedule schedule, long startNanos) {
+        if (currentlyDisabled && !m_previouslyDisabled) {
+            // Disabled Init
+            disabledInit();
+            System.out.println("disabled init");
+        } else if (!currentlyDisabled && m_previouslyDisabled) {
+            // Enabled Init
+            enabledInit();
+            System.out.println("enabled init");
+        } else if (currentlyDisabled && m_previouslyDisabled) {
+            // Disabled Periodic
+            schedule.run(m_disabledService, startNanos, m_loopTimer.getPeriodNanos(), m_stats);
+            //System.out.println("disabled periodic");
+        } else if (!currentlyDisabled && !m_previouslyDisabled) {
+            // Enabled Periodic
+            schedule.run(m_enabledService, startNanos, m_loopTimer.getPeriodNanos(), m_stats);
+            //System.out.println("enabled periodic");
+        }
+        m_previouslyDisabled = currentlyDisabled;
+    }
+
+    /**
+     * Has the command runner read every polled input in the same batch as its pending writes and
+     * waits for the result, so the cycle pays one round trip for all of its I/O. Gives up after one
+     * loop period, leaving the devices with the previous levels.
+     */
+    private void exchangeInputs() {
+        if (m_polledInputs == 0 || !hasBankOutput()) return;
+        long start = System.nanoTime();
+        PigpioConnectionPool pool = m_pool;
+        if (pool != null) {
+            // read on a connection of its own while the runner's writes are on the network
+            try {
+                m_inputLevels = pool.getConnection(kInputLane).readBanks();
+            } catch (IOException e) {
+                throw new RuntimeIOException(e);
+            }
+        } else {
+            m_inputReadRequested = true;
+            m_requestSeq.incrementAndGet();
+            LockSupport.unpark(m_commandThread);
+        }
+        try {
+            if (!awaitFlush((long) (m_loopTimer.getPeriodSeconds() * 1e9), TimeUnit.NANOSECONDS)) {
+                m_stats.recordLateExchange();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        m_stats.recordExchangeTime(System.nanoTime() - start);
+    }
+
+    /**
+     * Opens a pool of extra pigpiod connections so the parts of a cycle's I/O that do not depend on
+     * each other go out in parallel: polled inputs are read on the main loop while the command runner
+     * sends the writes, and servo group waveforms are built on a lane of their own while the runner
+     * sends its batch. Each cycle still waits for all of them before it counts as done. This mostly
+     * helps on links with a long round trip, such as Wi-Fi.
+     *
+     * @param size number of extra connections, 1 or 2; 2 gives inputs and waveforms one each, and 1
+     *     has them take turns
+     */
+    public synchronized void enableConnectionPool(int size) {
+        // more connections than lanes would never be used
+        if (size < 1 || size > kPoolLanes) {
+            throw new IllegalArgumentException("connection pool size must be 1 or " + kPoolLanes + ", got " + size);
+        }
+        PigpioConnection pigpio = m_pigpio;
+        if (pigpio == null) {
+            throw new RuntimeException("connection pooling needs a pigpiod connection to RPi");
+        }
+        try {
+            m_pool = new PigpioConnectionPool(pigpio.getHost(), pigpio.getPort(), size, kPoolLanes);
+        } catch (IOException e) {
+            throw new RuntimeException("could not open pooled connections to RPi", e);
+        }
+    }
+
+    public Optional<PigpioConnectionPool> getConnectionPool() {
+        return Optional.ofNullable(m_pool);
+    }
+
+    /**
+     * Asks the command runner to ping the Pi along with this cycle's writes. Heartbeats come from the
+     * main loop rather than a thread of their own, so the Pi's watchdog trips if the loop stops.
+     */
+    private void requestHeartbeatIfDue(long now) {
+        if (m_pingPort.isEmpty() || now - m_nextHeartbeatNanos < 0) return;
+        m_nextHeartbeatNanos = now + m_heartbeat.getIntervalNanos();
+        m_heartbeatRequested = true;
+        m_requestSeq.incrementAndGet();
+        LockSupport.unpark(m_commandThread);
+    }
+
+    /**
+     * Gets the heartbeat's round trip time statistics and the watchdog timeout it has chosen.
+     */
+    public Heartbeat getHeartbeat() {
+        return m_heartbeat;
+    }
+
+    /**
+     * Makes commands and inputs change together instead of one at a time. In this mode commands set
+     * by robot code only reach the main loop at {@link #publishCommands()}, and robot code only sees
+     * new inputs after {@link #snapshotInputs()}. Call both from the robot's periodic method, around
+     * {@code CommandScheduler.run()}, so every scheduler run reads one cycle's inputs and every main
+     * loop cycle uses one scheduler run's outputs. Device values must then only be set from that
+     * thread.
+     */
+    public void setBatchedExchange(boolean batched) {
+        m_batchedExchange = batched;
+    }
+
+    public boolean isBatchedExchange() {
+        return m_batchedExchange;
+    }
+
+    /**
+     * Hands every command set since the last call to the main loop at once.
+     */
+    public void publishCommands() {
+        m_commands.publish();
+    }
+
+    /**
+     * Takes the inputs of the latest finished main loop cycle for robot code to read.
+     */
+    public void snapshotInputs() {
+        m_inputs.snapshot(m_robotInputs);
+    }
+
+    /**
+     * Sets an output's commanded value from robot code.
+     */
+    void setCommand(int port, double value) {
+        if (m_batchedExchange || (m_transactionPorts & (1L << port)) != 0) {
+            m_commands.stage(port, value);
+        } else {
+            m_commands.set(port, value);
+        }
+    }
+
+    /**
+     * Holds the commands of {@code ports} back from the main loop until
+     * {@link #commitCommands(long)}. Robot thread only.
+     */
+    void beginCommands(long ports) {
+        m_transactionPorts |= ports;
+    }
+
+    /**
+     * Hands the commands held back since {@link #beginCommands(long)} to the main loop in one
+     * publication. With a batched exchange they wait for {@link #publishCommands()} like the rest.
+     */
+    void commitCommands(long ports) {
+        m_transactionPorts &= ~ports;
+        if (!m_batchedExchange) {
+            m_commands.publish();
+        }
+    }
+
+    /**
+     * Gets an output's commanded value as of the start of the current cycle. Main loop only.
+     */
+    double getCommand(int port) {
+        return m_loopCommands[port];
+    }
+
+    /**
+     * Gets an output's latest commanded value published to the main loop. Any thread.
+     */
+    double getPublishedCommand(int port) {
+        return m_commands.get(port);
+    }
+
+    /**
+     * Gets an input's value as of the latest finished cycle. Any thread.
+     */
+    double getPublishedInput(int port) {
+        return m_inputs.get(port);
+    }
+
+    /**
+     * Sets an input's value for robot code, published at the end of the cycle. Main loop only.
+     */
+    void setInput(int port, double value) {
+        m_inputs.stage(port, value);
+    }
+
+    /**
+     * Gets an input's value for robot code.
+     */
+    double getInput(int port) {
+        return m_batchedExchange ? m_robotInputs[port] : m_inputs.get(port);
+    }
+
+    /**
+     * Starts recording every cycle, commanded output, sent value and input change to a ring file,
+     * replacing any recording in progress. See {@link RoboPiLinkReplay} to play it back.
+     *
+     * @param capacity number of entries kept, see {@link RoboPiLinkRecorder#kDefaultCapacity}
+     */
+    public synchronized void startRecording(Path file, int capacity) throws IOException {
+        stopRecording();
+        m_recorder = new RoboPiLinkRecorder(file, capacity);
+        m_recording++;
+    }
+
+    public synchronized void stopRecording() throws IOException {
+        RoboPiLinkRecorder recorder = m_recorder;
+        if (recorder == null) return;
+        m_recorder = null;
+        recorder.close();
+    }
+
+    /**
+     * Gets a number identifying the recording in progress, or 0 if there is none.
+     */
+    int getRecording() {
+        return m_recorder == null ? 0 : m_recording;
+    }
+
+    void record(byte type, int port, double value) {
+        RoboPiLinkRecorder recorder = m_recorder;
+        if (recorder != null) {
+            recorder.record(type, port, value);
+        }
+    }
+
+    void record(byte type, int port, double value, long nanos) {
+        RoboPiLinkRecorder recorder = m_recorder;
+        if (recorder != null) {
+            recorder.record(type, port, value, nanos);
+        }
+    }
+
+    /**
+     * Gets when the cycle being run started, on the {@link System#nanoTime()} scale. A replayed
+     * cycle gives its recorded time.
+     */
+    long getCycleNanos() {
+        return m_cycleNanos;
+    }
+
     public boolean isPortTaken(int port) {
-        return m_devicePorts.contains(port);
+        return m_pins.isClaimed(port);
+    }
+
+    /**
+     * Claims a pin for a device, checking that the Pi's pin can be used that way.
+     *
+     * @throws RuntimeException if the pin is already in use or does not support {@code mode}
+     */
+    public void claimPort(int port, DeviceMode mode) {
+        m_pins.claim(port, mode);
     }
 
+    public PinRegistry getPinRegistry() {
+        return m_pins;
+    }
+
+  /**
+   * Drains queued commands and pending device writes on its own thread, so a slow socket never
+   * holds up the main loop. Parks whenever there is nothing to send.
+   */
   private Runnable commandRunner() {
     return () -> {
         while (true) {
-            Runnable command = m_commandQueue.poll();
-            if (command != null) {
-                sendCommandLocal(command);
+            // leave everything queued until the supervisor has the connection back; it resets the
+            // runner's state and the devices only while no pass is running
+            ConnectionSupervisor supervisor = m_supervisor;
+            if (supervisor != null && !supervisor.acquire()) {
+                LockSupport.parkNanos(this, 1_000_000);
+                continue;
+            }
+            long seq = m_requestSeq.get();
+            int generation = generation();
+
+            long retryNanos;
+            try {
+                PigpioConnection pigpio = m_pigpio;
+                if (pigpio != null) {
+                    // hold the connection from the first command queued until the pass's results
+                    // are read, so a command from another thread can neither send part of the
+                    // batch early nor overwrite its results
+                    synchronized (pigpio) {
+                        retryNanos = runPass(generation);
+                    }
+                } else {
+                    retryNanos = runPass(generation);
+                }
+            } finally {
+                if (supervisor != null) supervisor.release();
+            }
+
+            m_completedSeq = seq;
+            long actuationSeq = m_actuationSeq.get();
+            if (seq >= actuationSeq && m_actuationSeq.compareAndSet(actuationSeq, Long.MAX_VALUE)) {
+                m_stats.recordActuationLatency(System.nanoTime() - m_actuationStartNanos);
+            }
+            if (m_flushWaiters > 0) {
+                synchronized (m_flushLock) {
+                    m_flushLock.notifyAll();
+                }
+            }
+
+            if (m_requestSeq.get() == seq) {
+                // a servo group that could not swap its waveform yet needs another pass
+                if (retryNanos > 0) {
+                    LockSupport.parkNanos(this, retryNanos);
+                } else {
+                    LockSupport.park(this);
+                }
             }
         }
     };
   }
 
-  private void sendCommandLocal(Runnable command) {
-        command.run();
+  /**
+   * Sends everything pending in one pass of the command runner.
+   *
+   * @return 0, or how long until a servo group can swap its waveform again
+   */
+  private long runPass(int generation) {
+    int depth = 0;
+    Runnable command;
+    while ((command = m_commandQueue.poll()) != null) {
+        depth++;
+        try {
+            command.run();
+        } catch (Exception e) {
+            reportFailure(generation, e);
+        }
+    }
+
+    long ports = m_pendingPorts.getAndSet(0);
+    depth += Long.bitCount(ports);
+    long groupPorts = ports & m_groupedPorts;
+    ports &= ~groupPorts;
+    while (ports != 0) {
+        int port = Long.numberOfTrailingZeros(ports);
+        ports &= ports - 1;
+        writePort(port, generation);
+    }
+    if (depth > 0) {
+        m_stats.recordQueueDepth(depth);
+    }
+
+    // waveforms are sent before any output group's batch is opened, since creating one sends
+    // everything queued so far
+    long retryNanos = 0;
+    RPLServoGroup[] groups = m_servoGroups;
+    PigpioConnectionPool pool = m_pool;
+    boolean wavesStarted = false;
+    if (pool != null && groups.length > 0) {
+        wavesStarted = pool.start(kWaveLane, m_flushWaves);
+        if (!wavesStarted) {
+            // the lane's last task may have read the groups before this pass changed them
+            retryNanos = kBusyLaneRetryNanos;
+        }
+    } else {
+        try {
+            retryNanos = flushServoGroups(groups, m_pigpio);
+        } catch (IOException e) {
+            reportFailure(generation, e);
+        }
+    }
+
+    RPLOutputGroup[] outputGroups = m_outputGroups;
+    try {
+        writeOutputGroups(outputGroups, groupPorts, generation);
+    } catch (IOException e) {
+        reportFailure(generation, e);
+    }
+
+    boolean heartbeat = m_heartbeatRequested;
+    if (heartbeat) {
+        m_heartbeatRequested = false;
+    }
+    boolean readInputs = m_inputReadRequested;
+    if (readInputs) {
+        m_inputReadRequested = false;
+    }
+    try {
+        if (hasBankOutput()) {
+            flushBatch(heartbeat, readInputs, outputGroups);
+        } else if (heartbeat) {
+            long start = System.nanoTime();
+            m_ping_pin.toggle();
+            m_heartbeat.record(System.nanoTime() - start);
+        }
+    } catch (IOException | RuntimeException e) {
+        reportFailure(generation, e);
+    }
+
+    // the pass is only done once the waveforms are out too
+    if (wavesStarted) {
+        try {
+            if (!pool.await(kWaveLane, kLaneTimeoutNanos)) {
+                throw new IOException("servo waveforms were not sent within 1 s");
+            }
+            retryNanos = m_waveRetryNanos;
+        } catch (IOException e) {
+            reportFailure(generation, e);
+        }
+    }
+    return retryNanos;
+  }
+
+  private void writePort(int port, int generation) {
+    long start = System.nanoTime();
+    try {
+        m_devicesByPort[port].writeOutput();
+    } catch (Exception e) {
+        reportFailure(generation, e);
     }
+    m_stats.recordWriteTime(port, System.nanoTime() - start);
+  }
 
   /**
-   * sends a command to the python process
+   * Writes the pending members of each output group together. With a raw connection each group's
+   * commands go into the runner's batch back to back, between two tick reads whose difference
+   * {@link #flushBatch} records as the group's skew; otherwise the writes happen here and their span
+   * is the skew.
+   */
+  private void writeOutputGroups(RPLOutputGroup[] groups, long ports, int generation) throws IOException {
+    PigpioConnection pigpio = m_pigpio;
+    for (RPLOutputGroup group : groups) {
+        group.setTickIndexes(-1, -1, 0);
+        long members = ports & group.getMask();
+        if (members == 0) continue;
+        if (pigpio == null) {
+            long start = System.nanoTime();
+            writePorts(members, generation);
+            group.recordSkew(System.nanoTime() - start);
+            continue;
+        }
+        // the whole group must go in one batch, with room left for what flushBatch adds
+        if (pigpio.getQueuedCount() + Long.bitCount(members) + 2 + kBatchReserve > PigpioConnection.kMaxBatch) {
+            pigpio.flush();
+        }
+        // the ticks can only be read if flushBatch sends the whole group, so note which flush that is
+        int batch = pigpio.getFlushCount() + 1;
+        int opening = pigpio.getQueuedCount();
+        pigpio.queue(PigpioConnection.CMD_TICK, 0, 0);
+        m_writingGroup = true;
+        try {
+            writePorts(members, generation);
+        } finally {
+            m_writingGroup = false;
+        }
+        int closing = pigpio.getQueuedCount();
+        pigpio.queue(PigpioConnection.CMD_TICK, 0, 0);
+        group.setTickIndexes(opening, closing, batch);
+    }
+  }
+
+  private void writePorts(long ports, int generation) {
+    while (ports != 0) {
+        int port = Long.numberOfTrailingZeros(ports);
+        ports &= ports - 1;
+        writePort(port, generation);
+    }
+  }
+
+  /**
+   * Sends every servo group's new waveform, if it has one.
+   *
+   * @return 0, or how long until a group can swap its waveform again
+   */
+  private static long flushServoGroups(RPLServoGroup[] groups, PigpioConnection pigpio) throws IOException {
+    long retryNanos = 0;
+    for (int n = 0; n < groups.length; n++) {
+        long retry = groups[n].flush(pigpio);
+        if (retry > 0 && (retryNanos == 0 || retry < retryNanos)) retryNanos = retry;
+    }
+    return retryNanos;
+  }
+
+  /**
+   * Queues a command to run on the command runner thread.
    * 
-   * explicitly sends the string sent in. a '\n' at the end of the command is usually needed.
-   * @param command
+   * @param command the action to run, usually a call on a diozero device
    */
   public void sendCommand(Runnable command) {
-    command.run();
-    //m_commandQueue.add(command);
+    m_commandQueue.add(command);
+    m_requestSeq.incrementAndGet();
+    LockSupport.unpark(m_commandThread);
+  }
+
+  /**
+   * Marks a device as having a new output to send. The command runner calls
+   * {@link PigpiojDevice#writeOutput()} once for however many requests arrive before it gets to the
+   * port, so only the newest value is ever sent.
+   */
+  void requestWrite(PigpiojDevice device) {
+    long bit = 1L << device.getPort();
+    if ((m_groupedPorts & bit) != 0) {
+        if ((m_groupStagedPorts.getAndAccumulate(bit, kOr) & bit) != 0) {
+            m_stats.recordCoalescedWrite();
+        }
+        return;
+    }
+    if (m_gateWrites) {
+        if ((m_stagedPorts.getAndAccumulate(bit, kOr) & bit) != 0) {
+            m_stats.recordCoalescedWrite();
+        }
+        return;
+    }
+    if ((m_pendingPorts.getAndAccumulate(bit, kOr) & bit) == 0) {
+        m_requestSeq.incrementAndGet();
+        LockSupport.unpark(m_commandThread);
+    } else {
+        m_stats.recordCoalescedWrite();
+    }
+  }
+
+  /**
+   * Hands the writes of output group members requested while servicing the devices to the command
+   * runner at once, so each group is written in one pass.
+   */
+  private void releaseGroupWrites() {
+    if (m_groupStagedPorts.get() == 0) return;
+    long staged = m_groupStagedPorts.getAndSet(0);
+    if (m_gateWrites) {
+        m_stagedPorts.getAndAccumulate(staged, kOr);
+        return;
+    }
+    m_pendingPorts.getAndAccumulate(staged, kOr);
+    m_requestSeq.incrementAndGet();
+    LockSupport.unpark(m_commandThread);
+  }
+
+  /**
+   * Holds device writes back until {@link #releaseWrites()} is called, so that a caller such as
+   * {@link RoboPiFleet} can decide when a cycle's outputs go out.
+   */
+  void setWriteGating(boolean gated) {
+    m_gateWrites = gated;
+    if (!gated) {
+        releaseWrites();
+    }
+  }
+
+  /**
+   * Hands every write held back by write gating to the command runner at once.
+   */
+  void releaseWrites() {
+    long staged = m_stagedPorts.getAndSet(0);
+    if (staged == 0) return;
+    m_pendingPorts.getAndAccumulate(staged, kOr);
+    m_requestSeq.incrementAndGet();
+    LockSupport.unpark(m_commandThread);
+  }
+
+  /**
+   * Counts an output that was serviced with nothing new to send. Must be called from the main loop.
+   */
+  void recordSkippedWrite() {
+    m_stats.recordSkippedWrite();
   }
 
   private void enabledInit() {
-    for (PigpiojDevice device : m_devices) {
-        sendCommand(device.getEnabledInit());
+    PigpiojDevice[] devices = m_deviceArray;
+    for (int n = 0; n < devices.length; n++) {
+        devices[n].enabledInit();
     }
   }
 
-  private void enabledPeriodic() {
-    for (PigpiojDevice device : m_devices) {
-        sendCommand(device.getEnabledPeriodic());
+  private void enabledPeriodic(PigpiojDevice[] devices) {
+    for (int n = 0; n < devices.length; n++) {
+        long start = System.nanoTime();
+        devices[n].enabledPeriodic();
+        m_stats.recordServiceTime(devices[n].getPort(), System.nanoTime() - start);
     }
   }
 
   private void disabledInit() {
-    for (PigpiojDevice device : m_devices) {
-        sendCommand(device.getDisabledInit());
+    PigpiojDevice[] devices = m_deviceArray;
+    for (int n = 0; n < devices.length; n++) {
+        devices[n].disabledInit();
     }
   }
 
-  private void disabledPeriodic() {
-    for (PigpiojDevice device : m_devices) {
-        sendCommand(device.getDisabledPeriodic());
+  private void disabledPeriodic(PigpiojDevice[] devices) {
+    for (int n = 0; n < devices.length; n++) {
+        long start = System.nanoTime();
+        devices[n].disabledPeriodic();
+        m_stats.recordServiceTime(devices[n].getPort(), System.nanoTime() - start);
     }
   }
 
-  public void registerDevice(PigpiojDevice device) {
+  /**
+   * Whether digital writes can be batched into pigpio bank operations.
+   */
+  public boolean hasBankOutput() {
+    return m_pigpio != null;
+  }
+
+  /**
+   * Adds a digital write to the pending bank masks. The write is sent along with every other
+   * digital write in the same pass of the command runner. Must be called from the command runner.
+   */
+  void queueDigitalWrite(int port, boolean value) {
+    if (m_writingGroup) {
+        queueCommand(PigpioConnection.CMD_WRITE, port, value ? 1 : 0);
+        return;
+    }
+    if (port < 32) {
+        int bit = 1 << port;
+        if (value) {
+            m_bankSet1 |= bit;
+            m_bankClear1 &= ~bit;
+        } else {
+            m_bankClear1 |= bit;
+            m_bankSet1 &= ~bit;
+        }
+    } else {
+        int bit = 1 << (port - 32);
+        if (value) {
+            m_bankSet2 |= bit;
+            m_bankClear2 &= ~bit;
+        } else {
+            m_bankClear2 |= bit;
+            m_bankSet2 &= ~bit;
+        }
+    }
+  }
+
+  private void queueHeartbeat() throws IOException {
+    int pingPort = m_pingPort.getAsInt();
+    int timeoutMillis = m_heartbeat.takeTimeoutUpdate();
+    if (timeoutMillis >= 0) {
+        m_pigpio.queue(PigpioConnection.CMD_WDOG, pingPort, timeoutMillis);
+    }
+    m_pingLevel = !m_pingLevel;
+    queueDigitalWrite(pingPort, m_pingLevel);
+  }
+
+  /**
+   * Adds a command to the runner's batch, which is sent at the end of the pass together with the
+   * digital writes. Must be called from the command runner.
+   */
+  void queueCommand(int cmd, int p1, int p2) {
+    try {
+        m_pigpio.queue(cmd, p1, p2);
+    } catch (IOException e) {
+        throw new RuntimeIOException(e);
+    }
+  }
+
+  /**
+   * Sends everything queued during this pass, the digital bank writes, and the heartbeat and input
+   * read if they were asked for, as one pipelined batch: a single round trip however many pins it
+   * covers.
+   */
+  private void flushBatch(boolean heartbeat, boolean readInputs, RPLOutputGroup[] outputGroups) throws IOException {
+    PigpioConnection pigpio = m_pigpio;
+    boolean digitalWrites;
+    long nanos;
+    int level1, level2;
+    PigpioCommandException rejected = null;
+    // hold the connection so another thread's command cannot send part of this batch
+    synchronized (pigpio) {
+        if (heartbeat) {
+            queueHeartbeat();
+        }
+        digitalWrites = queueDigitalWrites();
+        if (readInputs) {
+            // last in the batch so their results are the last two
+            pigpio.queue(PigpioConnection.CMD_BR1, 0, 0);
+            pigpio.queue(PigpioConnection.CMD_BR2, 0, 0);
+        }
+
+        long start = System.nanoTime();
+        try {
+            pigpio.flush();
+        } catch (PigpioCommandException e) {
+            // the rest of the batch still ran, so its results are read before the error is reported
+            rejected = e;
+        }
+        nanos = System.nanoTime() - start;
+
+        int results = pigpio.getResultCount();
+        level1 = readInputs ? pigpio.getResult(results - 2) : 0;
+        level2 = readInputs ? pigpio.getResult(results - 1) : 0;
+
+        int flushes = pigpio.getFlushCount();
+        for (RPLOutputGroup group : outputGroups) {
+            int opening = group.getOpeningTickIndex();
+            int closing = group.getClosingTickIndex();
+            int batch = group.getTickBatch();
+            group.setTickIndexes(-1, -1, 0);
+            // a group whose ticks went out in an earlier flush, or whose batch was split by one,
+            // has no skew to record this pass
+            if (opening < 0 || batch != flushes || closing >= results) continue;
+            // pigpiod runs a batch in order, so the ticks bound the time between the first and last pin
+            group.recordSkew((pigpio.getResult(closing) - pigpio.getResult(opening)) * 1000L);
+        }
+    }
+
+    if (digitalWrites) {
+        m_stats.recordBankWriteTime(nanos);
+    }
+    if (heartbeat) {
+        m_heartbeat.record(nanos);
+    }
+    if (readInputs) {
+        m_inputLevels = Integer.toUnsignedLong(level1) | (long) level2 << 32;
+    }
+    if (rejected != null) {
+        throw rejected;
+    }
+  }
+
+  private boolean queueDigitalWrites() throws IOException {
+    if ((m_bankSet1 | m_bankClear1 | m_bankSet2 | m_bankClear2) == 0) return false;
+
+    // only ever drive pins that were claimed as digital outputs
+    long outputs = m_pins.getDigitalOutputMask();
+    int set1 = m_bankSet1 & (int) outputs, clear1 = m_bankClear1 & (int) outputs;
+    int set2 = m_bankSet2 & (int) (outputs >>> 32), clear2 = m_bankClear2 & (int) (outputs >>> 32);
+    m_bankSet1 = m_bankClear1 = m_bankSet2 = m_bankClear2 = 0;
+
+    m_pigpio.queueBankWrite(set1, clear1, set2, clear2);
+    return true;
+  }
+
+  /**
+   * Reads an input pin from the levels fetched at the start of the current cycle instead of asking
+   * the Pi for it alone. The pin must have been added with {@link #pollInput(int)}.
+   */
+  boolean getInputLevel(int port) {
+    return (m_inputLevels & (1L << port)) != 0;
+  }
+
+  /**
+   * Adds an input pin to the levels read in bulk every cycle.
+   *
+   * @return false if there is no raw pigpiod connection to read it with
+   */
+  synchronized boolean pollInput(int port) {
+    if (!hasBankOutput()) return false;
+    m_polledInputs |= 1L << port;
+    return true;
+  }
+
+  /**
+   * Changes the filters pigpiod applies to an input pin's notifications straight away. They are set
+   * up with the pin, and again after a reconnect, by the device's {@code queueSetup}.
+   */
+  void applyInputFilter(int port, int glitchMicros, int noiseSteadyMicros, int noiseActiveMicros) {
+    PigpioConnection pigpio = m_pigpio;
+    if (pigpio == null || port > 31) return;
+    try {
+        synchronized (pigpio) {
+            pigpio.queueInputFilter(port, glitchMicros, noiseSteadyMicros, noiseActiveMicros);
+            pigpio.flush();
+        }
+    } catch (IOException e) {
+        reportFailure(generation(), e);
+    }
+  }
+
+  /**
+   * Starts pushing level changes of an input pin from pigpiod instead of polling it.
+   *
+   * @return the notifier now watching the pin, or empty if notifications are unavailable for it
+   */
+  synchronized Optional<PigpioNotifier> watchInput(int port) {
+    if (m_pigpio == null || port > 31) return Optional.empty();
+    try {
+        openNotifier().watch(port);
+        return Optional.of(m_notifier);
+    } catch (IOException e) {
+        e.printStackTrace();
+        return Optional.empty();
+    }
+  }
+
+  /**
+   * Sets the port robopilinkd listens on, for counting encoders on the Pi. Defaults to
+   * {@link Failsafe#kDefaultPort}; set it before creating encoders.
+   */
+  public synchronized void setRobopilinkdPort(int port) {
+    m_robopilinkdPort = port;
+  }
+
+  /**
+   * Has robopilinkd count an encoder on the Pi and report batched changes to {@code listener}.
+   *
+   * @return false if there is no raw pigpiod connection or robopilinkd cannot be reached, in which
+   *     case the encoder has to watch its pins itself
+   */
+  synchronized boolean watchEncoder(int portA, int portB, EncoderCounter.Listener listener) {
+    if (m_pigpio == null || m_noEncoderCounter) return false;
+    try {
+        if (m_encoderCounter == null) {
+            int generation = generation();
+            // one batch per cycle at most, so no count waits long for the loop
+            int periodMillis = Math.max(1, (int) Math.round(m_loopTimer.getPeriodSeconds() * 1000));
+            m_encoderCounter = new EncoderCounter(m_pigpio.getHost(), m_robopilinkdPort, periodMillis,
+                e -> reportFailure(generation, e));
+        }
+        m_encoderCounter.watch(portA, portB, listener);
+        return true;
+    } catch (IOException e) {
+        System.out.println("RoboPiLink could not count encoders on RPi, falling back to notifications: " + e.getMessage());
+        m_noEncoderCounter = true;
+        return false;
+    }
+  }
+
+  private synchronized PigpioNotifier openNotifier() throws IOException {
+    if (m_notifier == null) {
+        int generation = generation();
+        m_notifier = new PigpioNotifier(m_pigpio, e -> reportFailure(generation, e));
+    }
+    return m_notifier;
+  }
+
+  synchronized void registerOutputGroup(RPLOutputGroup group) {
+    long overlap = m_groupedPorts & group.getMask();
+    if (overlap != 0) {
+        throw new RuntimeException("port " + Long.numberOfTrailingZeros(overlap) + " is already in an output group on RPi");
+    }
+    RPLOutputGroup[] groups = Arrays.copyOf(m_outputGroups, m_outputGroups.length + 1);
+    groups[groups.length - 1] = group;
+    m_outputGroups = groups;
+    m_groupedPorts |= group.getMask();
+    rebuildSchedules();
+  }
+
+  private Object getScheduleUnit(PigpiojDevice device) {
+    for (RPLOutputGroup group : m_outputGroups) {
+        if ((group.getMask() & (1L << device.getPort())) != 0) return group;
+    }
+    return device;
+  }
+
+  synchronized void registerServoGroup(RPLServoGroup group) {
+    RPLServoGroup[] groups = Arrays.copyOf(m_servoGroups, m_servoGroups.length + 1);
+    groups[groups.length - 1] = group;
+    m_servoGroups = groups;
+  }
+
+  /**
+   * Sets a new device up on the Pi and starts servicing it, or holds it back until
+   * {@link #provisionDevices()} if provisioning is deferred.
+   */
+  public synchronized void registerDevice(PigpiojDevice device) {
+    if (m_deferProvisioning) {
+        m_unprovisioned.add(device);
+        return;
+    }
+    provision(new PigpiojDevice[] {device});
+    addDevice(device);
+  }
+
+  private void addDevice(PigpiojDevice device) {
     m_devices.add(device);
+    m_devicesByPort[device.getPort()] = device;
+    m_stats.addDevice(device.getPort());
+    m_deviceArray = m_devices.toArray(new PigpiojDevice[0]);
+    m_inputDeviceArray = m_devices.stream().filter(d -> !d.isOutput()).toArray(PigpiojDevice[]::new);
+    m_outputDeviceArray = m_devices.stream().filter(PigpiojDevice::isOutput).toArray(PigpiojDevice[]::new);
+    rebuildSchedules();
+  }
+
+  /**
+   * Sets how often the main loop services a device, overriding the tier it declares itself. Slower
+   * tiers are spread across cycles and never delay the fast tier; deadline misses of each tier are
+   * counted in {@link RoboPiLinkStats#getDeadlineMisses(ServiceTier)}.
+   */
+  public synchronized void setServiceTier(PigpiojDevice device, ServiceTier tier) {
+    m_serviceTiers.put(device, tier);
+    rebuildSchedules();
+  }
+
+  public synchronized ServiceTier getServiceTier(PigpiojDevice device) {
+    return m_serviceTiers.getOrDefault(device, device.getServiceTier());
+  }
+
+  private void rebuildSchedules() {
+    m_schedule = new DeviceSchedule(m_deviceArray, this::getServiceTier, this::getScheduleUnit);
+    m_inputSchedule = new DeviceSchedule(m_inputDeviceArray, this::getServiceTier, this::getScheduleUnit);
+    m_outputSchedule = new DeviceSchedule(m_outputDeviceArray, this::getServiceTier, this::getScheduleUnit);
   }
 
+  /**
+   * Waits until every command and device write submitted before this call has been sent.
+   */
   public void block() {
-    while(!m_commandQueue.isEmpty()) {}
+    try {
+        awaitFlush(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Waits until every command and device write submitted before this call has been sent.
+   *
+   * @return false if the timeout passed first
+   */
+  public boolean awaitFlush(long timeout, TimeUnit unit) throws InterruptedException {
+    long target = m_requestSeq.get();
+    if (m_completedSeq >= target) return true;
+
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    synchronized (m_flushLock) {
+        m_flushWaiters++;
+        try {
+            while (m_completedSeq < target) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(m_flushLock, remaining);
+            }
+            return true;
+        } finally {
+            m_flushWaiters--;
+        }
+    }
+  }
+
+  /**
+   * Gets the device registered on a port, if there is one.
+   */
+  public Optional<PigpiojDevice> getDevice(int port) {
+    if (port < 0 || port >= m_devicesByPort.length) return Optional.empty();
+    return Optional.ofNullable(m_devicesByPort[port]);
   }
 
   public BaseNativeDeviceFactory getDeviceFactory() {
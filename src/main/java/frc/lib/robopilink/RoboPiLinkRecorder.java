@@ -0,0 +1,170 @@
+package frc.lib.robopilink;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records a link's I/O to a memory-mapped ring file: the start of every cycle, every commanded
+ * output, every value sent to the Pi, every input change and every encoder count change, each with
+ * a timestamp.
+ *
+ * <p>Each entry is a fixed {@link #kRecordSize} bytes written straight into the mapping with
+ * absolute puts, so recording costs a few stores and an atomic increment, never allocates and never
+ * blocks. The operating system writes the pages out on its own, and the file survives the robot
+ * program being killed. When the ring is full the oldest entries are overwritten.
+ *
+ * <p>Entries carry their sequence number, written after the rest of the entry, and a checksum, so
+ * {@link #read(Path)} can put them back in order and skip a slot that was being written when the
+ * program stopped.
+ */
+public class RoboPiLinkRecorder implements AutoCloseable {
+    public static final byte kCycle = 1;
+    public static final byte kCommanded = 2;
+    public static final byte kSent = 3;
+    public static final byte kInput = 4;
+    public static final byte kEncoderCount = 5;
+
+    public static final int kRecordSize = 32;
+    public static final int kDefaultCapacity = 1 << 19;
+
+    private static final int kMagic = 0x32_4c_50_52; // "RPL2" little endian
+    static final int kHeaderSize = 64;
+
+    private final FileChannel m_channel;
+    private final MappedByteBuffer m_buffer;
+    private final int m_capacity;
+    private final long m_startNanos = System.nanoTime();
+    private final AtomicLong m_nextSeq = new AtomicLong();
+
+    /**
+     * Creates or overwrites a recording.
+     *
+     * @param capacity number of entries kept before the oldest are overwritten; the default of
+     *     {@link #kDefaultCapacity} is 16 MiB
+     */
+    public RoboPiLinkRecorder(Path file, int capacity) throws IOException {
+        m_capacity = capacity;
+        m_channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        m_buffer = m_channel.map(FileChannel.MapMode.READ_WRITE, 0, kHeaderSize + (long) capacity * kRecordSize);
+        m_buffer.order(ByteOrder.LITTLE_ENDIAN);
+        m_buffer.putInt(0, kMagic);
+        m_buffer.putInt(4, kRecordSize);
+        m_buffer.putInt(8, capacity);
+        m_buffer.putLong(16, System.currentTimeMillis());
+        // slots start out marked empty, since sequence 0 is a real entry
+        for (int n = 0; n < capacity; n++) {
+            m_buffer.putLong(kHeaderSize + n * kRecordSize, -1);
+        }
+    }
+
+    /**
+     * Adds an entry. Safe to call from any thread.
+     */
+    void record(byte type, int port, double value) {
+        record(type, port, value, System.nanoTime());
+    }
+
+    /**
+     * Adds an entry that happened at {@code nanos}, on the {@link System#nanoTime()} scale.
+     */
+    void record(byte type, int port, double value, long nanos) {
+        long seq = m_nextSeq.getAndIncrement();
+        int offset = kHeaderSize + (int) (seq % m_capacity) * kRecordSize;
+        long time = nanos - m_startNanos;
+        // invalidate the slot while it is being overwritten; the fences keep the body between the two
+        m_buffer.putLong(offset, -1);
+        VarHandle.releaseFence();
+        m_buffer.putLong(offset + 8, time);
+        m_buffer.putDouble(offset + 16, value);
+        m_buffer.put(offset + 24, type);
+        m_buffer.put(offset + 25, (byte) port);
+        m_buffer.putInt(offset + 28, checksum(seq, time, Double.doubleToRawLongBits(value), type, port & 0xff));
+        VarHandle.releaseFence();
+        // written last, so a slot with the right sequence number is complete
+        m_buffer.putLong(offset, seq);
+    }
+
+    private static int checksum(long seq, long nanos, long valueBits, byte type, int port) {
+        long hash = seq;
+        hash = hash * 31 + nanos;
+        hash = hash * 31 + valueBits;
+        hash = hash * 31 + (type << 8 | port);
+        return (int) (hash ^ hash >>> 32);
+    }
+
+    public long getRecordCount() {
+        return m_nextSeq.get();
+    }
+
+    /**
+     * Writes the recording out to disk. Stopping the program without this loses nothing unless
+     * the whole machine goes down.
+     */
+    @Override
+    public void close() throws IOException {
+        m_buffer.force();
+        m_channel.close();
+    }
+
+    /**
+     * One recorded entry.
+     */
+    public static class Entry {
+        public final long seq;
+        /** Time since recording started. */
+        public final long nanos;
+        public final byte type;
+        public final int port;
+        /** Output or input value or encoder count; booleans are 0 or 1, and an empty servo value is NaN. */
+        public final double value;
+
+        Entry(long seq, long nanos, byte type, int port, double value) {
+            this.seq = seq;
+            this.nanos = nanos;
+            this.type = type;
+            this.port = port;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Reads every complete entry of a recording, oldest first. An entry that was being written when
+     * the program stopped is left out, which leaves a gap in the sequence numbers.
+     */
+    public static List<Entry> read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != kMagic || buffer.getInt(4) != kRecordSize) {
+                throw new IOException(file + " is not a RoboPiLink recording");
+            }
+            int capacity = buffer.getInt(8);
+
+            List<Entry> entries = new ArrayList<>();
+            for (int n = 0; n < capacity; n++) {
+                int offset = kHeaderSize + n * kRecordSize;
+                long seq = buffer.getLong(offset);
+                if (seq < 0 || seq % capacity != n) continue;
+                VarHandle.acquireFence();
+                long nanos = buffer.getLong(offset + 8);
+                long valueBits = buffer.getLong(offset + 16);
+                byte type = buffer.get(offset + 24);
+                int port = buffer.get(offset + 25) & 0xff;
+                if (buffer.getInt(offset + 28) != checksum(seq, nanos, valueBits, type, port)) continue;
+                entries.add(new Entry(seq, nanos, type, port, Double.longBitsToDouble(valueBits)));
+            }
+            entries.sort(Comparator.comparingLong(entry -> entry.seq));
+            return entries;
+        }
+    }
+}
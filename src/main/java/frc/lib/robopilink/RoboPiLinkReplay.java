@@ -0,0 +1,133 @@
+package frc.lib.robopilink;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+
+import com.diozero.sbc.BoardPinInfo;
+
+/**
+ * Plays a {@link RoboPiLinkRecorder} recording back through a simulated link.
+ *
+ * <p>Create the same devices on {@link #getLink()} as the recorded program did, then call
+ * {@link #step()} or {@link #run()}. Each recorded cycle is replayed in order: inputs recorded
+ * during it are set on the {@link ReplayDeviceFactory}, commanded outputs recorded before it are
+ * applied to the output devices, and the cycle runs with the recorded enabled state and start time.
+ * Nothing depends on wall clock time, so the same recording always gives the same result.
+ *
+ * <p>If an entry is missing because it was being written when the recorded program stopped, the
+ * recording ends before the cycle it belonged to, since that cycle cannot be replayed as it ran.
+ *
+ * <p>Encoder counts are recorded but not replayed, since the simulated Pi has no edges to count;
+ * only digital input levels are fed back.
+ *
+ * <p>To check a change against a recording, drive the outputs from the code under test instead by
+ * passing {@code applyCommands = false}, and record the replay link to compare what it sends.
+ */
+public class RoboPiLinkReplay {
+    private final List<RoboPiLinkRecorder.Entry> m_entries;
+    private final ReplayDeviceFactory m_deviceFactory = new ReplayDeviceFactory();
+    private final RoboPiLink m_link;
+    private final boolean m_applyCommands;
+
+    // the recording's start on this program's System.nanoTime() scale
+    private final long m_startNanos = System.nanoTime();
+
+    private int m_next = 0;
+    private long m_cycle = 0;
+
+    public RoboPiLinkReplay(Path recording) throws IOException {
+        this(recording, true);
+    }
+
+    /**
+     * @param applyCommands whether to set output devices to the recorded commanded values
+     */
+    public RoboPiLinkReplay(Path recording, boolean applyCommands) throws IOException {
+        m_entries = completeCycles(RoboPiLinkRecorder.read(recording));
+        m_applyCommands = applyCommands;
+        BoardPinInfo info = m_deviceFactory.getBoardPinInfo();
+        new MockBoardConfigurator().configure(info);
+        m_link = new RoboPiLink(m_deviceFactory, OptionalInt.empty());
+    }
+
+    /**
+     * Cuts off a torn tail: everything from the start of the cycle in which the first entry is
+     * missing. Entries are numbered when they are claimed, so a gap was still being written.
+     */
+    private static List<RoboPiLinkRecorder.Entry> completeCycles(List<RoboPiLinkRecorder.Entry> entries) {
+        int end = 1;
+        while (end < entries.size() && entries.get(end).seq == entries.get(end - 1).seq + 1) {
+            end++;
+        }
+        if (end >= entries.size()) return entries;
+        while (end > 0 && entries.get(end - 1).type != RoboPiLinkRecorder.kCycle) {
+            end--;
+        }
+        return entries.subList(0, Math.max(0, end - 1));
+    }
+
+    public RoboPiLink getLink() {
+        return m_link;
+    }
+
+    public ReplayDeviceFactory getDeviceFactory() {
+        return m_deviceFactory;
+    }
+
+    /**
+     * Gets the number of cycles replayed so far.
+     */
+    public long getCycle() {
+        return m_cycle;
+    }
+
+    /**
+     * Replays the next recorded cycle and waits for its writes to go out.
+     *
+     * @return false if the recording has no more cycles
+     */
+    public boolean step() {
+        // commands sent from robot code before the cycle started
+        while (m_next < m_entries.size() && m_entries.get(m_next).type != RoboPiLinkRecorder.kCycle) {
+            apply(m_entries.get(m_next++));
+        }
+        if (m_next == m_entries.size()) return false;
+        RoboPiLinkRecorder.Entry cycle = m_entries.get(m_next++);
+        boolean disabled = cycle.value != 0;
+
+        // inputs read while the cycle ran
+        for (int n = m_next; n < m_entries.size() && m_entries.get(n).type != RoboPiLinkRecorder.kCycle; n++) {
+            RoboPiLinkRecorder.Entry entry = m_entries.get(n);
+            if (entry.type == RoboPiLinkRecorder.kInput) {
+                m_deviceFactory.setInputLevel(entry.port, entry.value != 0);
+            }
+        }
+
+        m_link.runCycle(disabled, m_startNanos + cycle.nanos);
+        m_link.block();
+        m_cycle++;
+        return true;
+    }
+
+    /**
+     * Replays every remaining cycle.
+     */
+    public void run() {
+        while (step()) {}
+    }
+
+    private void apply(RoboPiLinkRecorder.Entry entry) {
+        if (!m_applyCommands || entry.type != RoboPiLinkRecorder.kCommanded) return;
+        PigpiojDevice device = m_link.getDevice(entry.port).orElse(null);
+        if (device instanceof RPLOutputDigital) {
+            ((RPLOutputDigital) device).setValue(entry.value != 0);
+        } else if (device instanceof RPLOutputPWM) {
+            ((RPLOutputPWM) device).setValue(entry.value);
+        } else if (device instanceof RPLOutputServo) {
+            ((RPLOutputServo) device).setValue(Double.isNaN(entry.value) ? OptionalDouble.empty() : OptionalDouble.of(entry.value));
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package frc.lib.robopilink;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import edu.wpi.first.networktables.DoublePublisher;
+import edu.wpi.first.networktables.IntegerPublisher;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableInstance;
+
+/**
+ * Timing and traffic statistics for one {@link RoboPiLink}.
+ *
+ * <p>Everything is recorded into preallocated {@link Histogram}s and counters so the main loop and
+ * command runner never allocate to keep them. {@link #publish()} copies a summary to NetworkTables
+ * under {@code RoboPiLink/stats} and is meant to be called a few times a second at most.
+ */
+public class RoboPiLinkStats {
+    private static final int kMaxPorts = 64;
+
+    private final Histogram m_cycleTime = new Histogram();
+    private final Histogram m_queueDepth = new Histogram();
+    private final Histogram m_bankWriteTime = new Histogram();
+    private final Histogram m_reconnectTime = new Histogram();
+    private final Histogram m_exchangeTime = new Histogram();
+    private final Histogram m_actuationLatency = new Histogram();
+    private final Histogram[] m_serviceTime = new Histogram[kMaxPorts];
+    private final Histogram[] m_writeTime = new Histogram[kMaxPorts];
+
+    // skipped writes are counted on the main loop only; coalesced ones can come from any thread
+    private volatile long m_skippedWrites = 0;
+    private final AtomicLong m_coalescedWrites = new AtomicLong();
+    private final AtomicLong m_disconnects = new AtomicLong();
+    private final AtomicLong m_commandErrors = new AtomicLong();
+    private volatile long m_lateExchanges = 0;
+    // counted by whichever thread services the devices, the main loop or the robot's in a
+    // phase-locked cycle, and read by the publisher
+    private final AtomicLongArray m_deadlineMisses = new AtomicLongArray(ServiceTier.values().length);
+    private volatile long m_provisioningNanos = 0;
+    private volatile long m_startupNanos = 0;
+
+    private volatile LoopTimer m_loopTimer;
+    private final Heartbeat m_heartbeat;
+    private volatile Failsafe m_failsafe;
+
+    private NetworkTable m_table;
+    private HistogramPublisher m_cycleTimePublisher;
+    private HistogramPublisher m_queueDepthPublisher;
+    private HistogramPublisher m_bankWriteTimePublisher;
+    private HistogramPublisher m_reconnectTimePublisher;
+    private HistogramPublisher m_exchangeTimePublisher;
+    private IntegerPublisher m_lateExchangesPublisher;
+    private IntegerPublisher[] m_deadlineMissesPublishers;
+    private DoublePublisher m_provisioningPublisher;
+    private DoublePublisher m_startupPublisher;
+    private HistogramPublisher m_actuationLatencyPublisher;
+    private HistogramPublisher m_heartbeatRttPublisher;
+    private DoublePublisher m_smoothedRttPublisher;
+    private DoublePublisher m_heartbeatTimeoutPublisher;
+    private HistogramPublisher m_failsafeTripLatencyPublisher;
+    private HistogramPublisher[] m_serviceTimePublishers;
+    private HistogramPublisher[] m_writeTimePublishers;
+    private IntegerPublisher m_skippedWritesPublisher;
+    private IntegerPublisher m_coalescedWritesPublisher;
+    private IntegerPublisher m_disconnectsPublisher;
+    private IntegerPublisher m_commandErrorsPublisher;
+    private IntegerPublisher m_overrunsPublisher;
+    private DoublePublisher m_meanJitterPublisher;
+    private DoublePublisher m_maxJitterPublisher;
+
+    RoboPiLinkStats(LoopTimer loopTimer, Heartbeat heartbeat) {
+        m_loopTimer = loopTimer;
+        m_heartbeat = heartbeat;
+    }
+
+    void setLoopTimer(LoopTimer loopTimer) {
+        m_loopTimer = loopTimer;
+    }
+
+    void setFailsafe(Failsafe failsafe) {
+        m_failsafe = failsafe;
+    }
+
+    void addDevice(int port) {
+        m_serviceTime[port] = new Histogram();
+        m_writeTime[port] = new Histogram();
+    }
+
+    void recordCycleTime(long nanos) {
+        m_cycleTime.record(nanos);
+    }
+
+    void recordServiceTime(int port, long nanos) {
+        m_serviceTime[port].record(nanos);
+    }
+
+    void recordWriteTime(int port, long nanos) {
+        m_writeTime[port].record(nanos);
+    }
+
+    void recordBankWriteTime(long nanos) {
+        m_bankWriteTime.record(nanos);
+    }
+
+    void recordQueueDepth(int depth) {
+        m_queueDepth.record(depth);
+    }
+
+    void recordSkippedWrite() {
+        m_skippedWrites++;
+    }
+
+    void recordCoalescedWrite() {
+        m_coalescedWrites.incrementAndGet();
+    }
+
+    void recordExchangeTime(long nanos) {
+        m_exchangeTime.record(nanos);
+    }
+
+    void recordLateExchange() {
+        m_lateExchanges++;
+    }
+
+    void recordDeadlineMiss(ServiceTier tier) {
+        m_deadlineMisses.incrementAndGet(tier.ordinal());
+    }
+
+    void recordStartup(long provisioningNanos, long startupNanos) {
+        m_provisioningNanos = provisioningNanos;
+        m_startupNanos = startupNanos;
+    }
+
+    void recordActuationLatency(long nanos) {
+        m_actuationLatency.record(nanos);
+    }
+
+    void recordDisconnect() {
+        m_disconnects.incrementAndGet();
+    }
+
+    void recordCommandError() {
+        m_commandErrors.incrementAndGet();
+    }
+
+    void recordReconnectTime(long nanos) {
+        m_reconnectTime.record(nanos);
+    }
+
+    /** Time the main loop spends running one cycle, in nanoseconds, not counting the wait. */
+    public Histogram getCycleTime() {
+        return m_cycleTime;
+    }
+
+    /**
+     * Time the main loop spends in a device's periodic hook, in nanoseconds. For a polled input this
+     * is the read round trip.
+     */
+    public Histogram getServiceTime(int port) {
+        return m_serviceTime[port];
+    }
+
+    /** Time the command runner spends sending a device's output, in nanoseconds. */
+    public Histogram getWriteTime(int port) {
+        return m_writeTime[port];
+    }
+
+    /** Time the command runner spends sending the batched digital bank masks, in nanoseconds. */
+    public Histogram getBankWriteTime() {
+        return m_bankWriteTime;
+    }
+
+    /** Number of commands and device writes the command runner found waiting on each pass. */
+    public Histogram getQueueDepth() {
+        return m_queueDepth;
+    }
+
+    /** Number of times an output was serviced with nothing new to send. */
+    public long getSkippedWrites() {
+        return m_skippedWrites;
+    }
+
+    /** Number of output changes replaced by a newer value before they were sent. */
+    public long getCoalescedWrites() {
+        return m_coalescedWrites.get();
+    }
+
+    /** Round trip time and watchdog timeout of the heartbeat to the Pi. */
+    public Heartbeat getHeartbeat() {
+        return m_heartbeat;
+    }
+
+    /** Time the main loop waited each cycle for the batch carrying its writes and input reads, in nanoseconds. */
+    public Histogram getExchangeTime() {
+        return m_exchangeTime;
+    }
+
+    /** Number of cycles that gave up waiting for their input read and used the previous levels. */
+    public long getLateExchanges() {
+        return m_lateExchanges;
+    }
+
+    /**
+     * Time from a phase-locked cycle starting to read its inputs until the outputs robot code set
+     * from them were sent, in nanoseconds. Only recorded in phase-locked mode, for cycles that changed
+     * an output.
+     */
+    public Histogram getActuationLatency() {
+        return m_actuationLatency;
+    }
+
+    /**
+     * Number of times devices in {@code tier} were serviced late: after the end of the cycle for the
+     * fast tier, or more than the tier's period after their last service for the slower ones.
+     */
+    public long getDeadlineMisses(ServiceTier tier) {
+        return m_deadlineMisses.get(tier.ordinal());
+    }
+
+    /** Time spent setting up the devices declared before the link was provisioned, in seconds. */
+    public double getProvisioningSeconds() {
+        return m_provisioningNanos / 1e9;
+    }
+
+    /** Time from the link being created until its devices were set up, in seconds. */
+    public double getStartupSeconds() {
+        return m_startupNanos / 1e9;
+    }
+
+    /** Number of times the connection to the Pi was lost. */
+    public long getDisconnects() {
+        return m_disconnects.get();
+    }
+
+    /** Number of commands pigpiod rejected, such as a value out of range for the pin. */
+    public long getCommandErrors() {
+        return m_commandErrors.get();
+    }
+
+    /** Time from a connection failure being detected until the link was back, in nanoseconds. */
+    public Histogram getReconnectTime() {
+        return m_reconnectTime;
+    }
+
+    /**
+     * Copies the current statistics to NetworkTables. Latencies are published in microseconds.
+     */
+    public synchronized void publish() {
+        if (m_table == null) {
+            m_table = NetworkTableInstance.getDefault().getTable("RoboPiLink").getSubTable("stats");
+            m_cycleTimePublisher = new HistogramPublisher(m_table.getSubTable("cycleTime"));
+            m_queueDepthPublisher = new HistogramPublisher(m_table.getSubTable("queueDepth"));
+            m_bankWriteTimePublisher = new HistogramPublisher(m_table.getSubTable("bankWriteTime"));
+            m_reconnectTimePublisher = new HistogramPublisher(m_table.getSubTable("reconnectTime"));
+            m_exchangeTimePublisher = new HistogramPublisher(m_table.getSubTable("exchangeTime"));
+            m_lateExchangesPublisher = m_table.getIntegerTopic("lateExchanges").publish();
+            NetworkTable deadlineMisses = m_table.getSubTable("deadlineMisses");
+            m_deadlineMissesPublishers = new IntegerPublisher[ServiceTier.values().length];
+            for (ServiceTier tier : ServiceTier.values()) {
+                m_deadlineMissesPublishers[tier.ordinal()] = deadlineMisses.getIntegerTopic(tier.name().toLowerCase()).publish();
+            }
+            m_provisioningPublisher = m_table.getDoubleTopic("provisioningMs").publish();
+            m_startupPublisher = m_table.getDoubleTopic("startupMs").publish();
+            m_actuationLatencyPublisher = new HistogramPublisher(m_table.getSubTable("actuationLatency"));
+            m_heartbeatRttPublisher = new HistogramPublisher(m_table.getSubTable("heartbeatRtt"));
+            m_smoothedRttPublisher = m_table.getDoubleTopic("heartbeatSmoothedRttUs").publish();
+            m_heartbeatTimeoutPublisher = m_table.getDoubleTopic("heartbeatTimeoutMs").publish();
+            m_serviceTimePublishers = new HistogramPublisher[kMaxPorts];
+            m_writeTimePublishers = new HistogramPublisher[kMaxPorts];
+            m_skippedWritesPublisher = m_table.getIntegerTopic("skippedWrites").publish();
+            m_coalescedWritesPublisher = m_table.getIntegerTopic("coalescedWrites").publish();
+            m_disconnectsPublisher = m_table.getIntegerTopic("disconnects").publish();
+            m_commandErrorsPublisher = m_table.getIntegerTopic("commandErrors").publish();
+            m_overrunsPublisher = m_table.getIntegerTopic("loopOverruns").publish();
+            m_meanJitterPublisher = m_table.getDoubleTopic("loopJitterMeanUs").publish();
+            m_maxJitterPublisher = m_table.getDoubleTopic("loopJitterMaxUs").publish();
+        }
+
+        m_cycleTimePublisher.publish(m_cycleTime, 1e-3);
+        m_queueDepthPublisher.publish(m_queueDepth, 1.0);
+        m_bankWriteTimePublisher.publish(m_bankWriteTime, 1e-3);
+        m_reconnectTimePublisher.publish(m_reconnectTime, 1e-3);
+        m_exchangeTimePublisher.publish(m_exchangeTime, 1e-3);
+        m_lateExchangesPublisher.set(getLateExchanges());
+        for (ServiceTier tier : ServiceTier.values()) {
+            m_deadlineMissesPublishers[tier.ordinal()].set(getDeadlineMisses(tier));
+        }
+        m_provisioningPublisher.set(getProvisioningSeconds() * 1e3);
+        m_startupPublisher.set(getStartupSeconds() * 1e3);
+        m_actuationLatencyPublisher.publish(m_actuationLatency, 1e-3);
+        m_heartbeatRttPublisher.publish(m_heartbeat.getRtt(), 1e-3);
+        m_smoothedRttPublisher.set(m_heartbeat.getSmoothedRttSeconds() * 1e6);
+        m_heartbeatTimeoutPublisher.set(m_heartbeat.getTimeoutSeconds() * 1e3);
+        Failsafe failsafe = m_failsafe;
+        if (failsafe != null) {
+            if (m_failsafeTripLatencyPublisher == null) {
+                m_failsafeTripLatencyPublisher = new HistogramPublisher(m_table.getSubTable("failsafeTripLatency"));
+            }
+            m_failsafeTripLatencyPublisher.publish(failsafe.getTripLatency(), 1e-3);
+        }
+        for (int port = 0; port < kMaxPorts; port++) {
+            if (m_serviceTime[port] == null) continue;
+            if (m_serviceTimePublishers[port] == null) {
+                NetworkTable device = m_table.getSubTable("port" + port);
+                m_serviceTimePublishers[port] = new HistogramPublisher(device.getSubTable("serviceTime"));
+                m_writeTimePublishers[port] = new HistogramPublisher(device.getSubTable("writeTime"));
+            }
+            m_serviceTimePublishers[port].publish(m_serviceTime[port], 1e-3);
+            m_writeTimePublishers[port].publish(m_writeTime[port], 1e-3);
+        }
+        m_skippedWritesPublisher.set(getSkippedWrites());
+        m_coalescedWritesPublisher.set(getCoalescedWrites());
+        m_disconnectsPublisher.set(getDisconnects());
+        m_commandErrorsPublisher.set(getCommandErrors());
+        LoopTimer loopTimer = m_loopTimer;
+        m_overrunsPublisher.set(loopTimer.getOverrunCount());
+        m_meanJitterPublisher.set(loopTimer.getMeanJitterSeconds() * 1e6);
+        m_maxJitterPublisher.set(loopTimer.getMaxJitterSeconds() * 1e6);
+    }
+
+    private static class HistogramPublisher {
+        private final DoublePublisher m_mean;
+        private final DoublePublisher m_p99;
+        private final DoublePublisher m_max;
+        private final IntegerPublisher m_count;
+
+        HistogramPublisher(NetworkTable table) {
+            m_mean = table.getDoubleTopic("mean").publish();
+            m_p99 = table.getDoubleTopic("p99").publish();
+            m_max = table.getDoubleTopic("max").publish();
+            m_count = table.getIntegerTopic("count").publish();
+        }
+
+        void publish(Histogram histogram, double scale) {
+            m_mean.set(histogram.getMean() * scale);
+            m_p99.set(histogram.getPercentile(0.99) * scale);
+            m_max.set(histogram.getMax() * scale);
+            m_count.set(histogram.getCount());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package frc.lib.robopilink;
+
+import edu.wpi.first.networktables.DoublePublisher;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableInstance;
+import edu.wpi.first.networktables.PubSubOption;
+
+/**
+ * Publishes the state of every device on a {@link RoboPiLink} to NetworkTables under
+ * {@code RoboPiLink/devices/<port>}: {@code commanded} and {@code sent} for outputs, and
+ * {@code input} for inputs, which is the level of a digital input or the count of an encoder since
+ * it was created, ignoring resets, as of the last finished cycle.
+ *
+ * <p>Publishers are created once per device, the first time it is seen, and each value is only set
+ * when it changed since it was last published. {@link #publish()} runs at a fixed rate and the
+ * publishers send at the same period, so NetworkTables carries at most one batch of changes per
+ * period and a robot whose pins sit still costs next to nothing, however many devices it has.
+ */
+public class RoboPiLinkTelemetry {
+    private final RoboPiLink m_link;
+    private final double m_periodSeconds;
+
+    private NetworkTable m_table;
+    private PigpiojDevice[] m_devices = new PigpiojDevice[0];
+    private Entry[] m_entries = new Entry[0];
+    private volatile long m_updates = 0;
+
+    RoboPiLinkTelemetry(RoboPiLink link, double periodSeconds) {
+        m_link = link;
+        m_periodSeconds = periodSeconds;
+    }
+
+    public double getPeriodSeconds() {
+        return m_periodSeconds;
+    }
+
+    /**
+     * Gets the number of values set on NetworkTables so far.
+     */
+    public long getUpdateCount() {
+        return m_updates;
+    }
+
+    /**
+     * Publishes every value that changed since the last call.
+     */
+    public synchronized void publish() {
+        PigpiojDevice[] devices = m_link.getDeviceArray();
+        if (devices != m_devices) {
+            addEntries(devices);
+        }
+        long updates = 0;
+        Entry[] entries = m_entries;
+        for (int n = 0; n < entries.length; n++) {
+            updates += entries[n].publish();
+        }
+        m_updates += updates;
+    }
+
+    private void addEntries(PigpiojDevice[] devices) {
+        if (m_table == null) {
+            m_table = NetworkTableInstance.getDefault().getTable("RoboPiLink").getSubTable("devices");
+        }
+        Entry[] entries = new Entry[devices.length];
+        for (int n = 0; n < devices.length; n++) {
+            entries[n] = findEntry(devices[n]);
+            if (entries[n] == null) {
+                entries[n] = new Entry(devices[n], m_table.getSubTable(Integer.toString(devices[n].getPort())));
+            }
+        }
+        m_entries = entries;
+        m_devices = devices;
+    }
+
+    private Entry findEntry(PigpiojDevice device) {
+        for (Entry entry : m_entries) {
+            if (entry.m_device == device) return entry;
+        }
+        return null;
+    }
+
+    private class Entry {
+        private final PigpiojDevice m_device;
+        private final int m_port;
+        private final Value m_commanded;
+        private final Value m_sent;
+        private final Value m_input;
+
+        Entry(PigpiojDevice device, NetworkTable table) {
+            m_device = device;
+            m_port = device.getPort();
+            boolean output = device.isOutput();
+            m_commanded = output ? new Value(table, "commanded") : null;
+            m_sent = output ? new Value(table, "sent") : null;
+            m_input = output ? null : new Value(table, "input");
+        }
+
+        int publish() {
+            if (m_input != null) {
+                return m_input.publish(m_link.getPublishedInput(m_port));
+            }
+            return m_commanded.publish(m_link.getPublishedCommand(m_port)) + m_sent.publish(m_device.getSentValue());
+        }
+    }
+
+    private class Value {
+        private final DoublePublisher m_publisher;
+        private double m_last;
+        private boolean m_published = false;
+
+        Value(NetworkTable table, String name) {
+            m_publisher = table.getDoubleTopic(name).publish(PubSubOption.periodic(m_periodSeconds));
+        }
+
+        int publish(double value) {
+            // compare covers NaN, which a servo with no control sends
+            if (m_published && Double.compare(value, m_last) == 0) return 0;
+            m_publisher.set(value);
+            m_last = value;
+            m_published = true;
+            return 1;
+        }
+    }
+}
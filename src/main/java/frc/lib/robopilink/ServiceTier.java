@@ -0,0 +1,27 @@
+package frc.lib.robopilink;
+
+/**
+ * How often the {@link RoboPiLink} main loop services a device's periodic hook. Init hooks always run
+ * on every device as soon as the robot changes mode.
+ */
+public enum ServiceTier {
+    /** Every cycle, 200 times a second at the default period. For anything that moves the robot. */
+    FAST(1),
+    /** Every 4th cycle, about as often as the robot's own periodic methods. */
+    NORMAL(4),
+    /** Every 40th cycle, 5 times a second at the default period. For mode jumpers and indicator lights. */
+    SLOW(40);
+
+    private final int m_cycles;
+
+    ServiceTier(int cycles) {
+        m_cycles = cycles;
+    }
+
+    /**
+     * Gets the number of main loop cycles between services of a device in this tier.
+     */
+    public int getCycles() {
+        return m_cycles;
+    }
+}
@@ -0,0 +1,101 @@
+package frc.lib.robopilink;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands an array of values from one thread to another without locks, using a sequence lock.
+ *
+ * <p>The writer stages values with {@link #stage(int, double)} and makes all of them visible at once
+ * with {@link #publish()}, or writes a single value straight through with {@link #set(int, double)}.
+ * Either way it bumps the sequence number to odd, copies into the shared array and bumps it back to
+ * even. Readers copy the shared array and retry if the sequence number moved while they did, so
+ * they always see one whole publication, and the writer never waits for them.
+ *
+ * <p>Staging is for a single writer thread. Concurrent {@code set} and {@code publish} calls are
+ * safe, but briefly spin against each other.
+ */
+class StateExchange {
+    private final int m_size;
+    private final AtomicLong m_seq = new AtomicLong();
+    private final double[] m_shared;
+
+    // writer side only
+    private final double[] m_staged;
+    private long m_stagedSlots = 0;
+
+    StateExchange(int size) {
+        if (size > 64) {
+            throw new IllegalArgumentException("at most 64 slots, got " + size);
+        }
+        m_size = size;
+        m_shared = new double[size];
+        m_staged = new double[size];
+    }
+
+    void stage(int slot, double value) {
+        m_staged[slot] = value;
+        m_stagedSlots |= 1L << slot;
+    }
+
+    /**
+     * Makes every staged value visible to readers at once.
+     */
+    void publish() {
+        long slots = m_stagedSlots;
+        if (slots == 0) return;
+        m_stagedSlots = 0;
+        long seq = beginWrite();
+        while (slots != 0) {
+            int slot = Long.numberOfTrailingZeros(slots);
+            slots &= slots - 1;
+            m_shared[slot] = m_staged[slot];
+        }
+        m_seq.set(seq + 2);
+    }
+
+    /**
+     * Writes one value straight to readers.
+     */
+    void set(int slot, double value) {
+        long seq = beginWrite();
+        m_shared[slot] = value;
+        m_seq.set(seq + 2);
+    }
+
+    private long beginWrite() {
+        while (true) {
+            long seq = m_seq.get();
+            // the compare and set is a full fence, so the writes after it cannot move ahead of it
+            if ((seq & 1) == 0 && m_seq.compareAndSet(seq, seq + 1)) return seq;
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Copies the latest publication into {@code into}.
+     */
+    void snapshot(double[] into) {
+        while (true) {
+            long seq = m_seq.get();
+            if ((seq & 1) == 0) {
+                System.arraycopy(m_shared, 0, into, 0, m_size);
+                VarHandle.loadLoadFence();
+                if (m_seq.get() == seq) return;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    double get(int slot) {
+        while (true) {
+            long seq = m_seq.get();
+            if ((seq & 1) == 0) {
+                double value = m_shared[slot];
+                VarHandle.loadLoadFence();
+                if (m_seq.get() == seq) return value;
+            }
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -36,6 +36,10 @@ public class Robot extends TimedRobot {
 
     // Instantiate robot python interface
     m_roboPiLink = RoboPiLink.remotePi("raspberrypi", isSimulation);
+    // Hand the scheduler's outputs to the main loop together, once per robotPeriodic
+    m_roboPiLink.setBatchedExchange(true);
+    // Set the devices up on the Pi together once RobotContainer has declared them all
+    m_roboPiLink.deferProvisioning();
 
     // Instantiate our RobotContainer.  This will perform all our button bindings, and put our
     // autonomous chooser on the dashboard.
@@ -60,7 +64,9 @@ public class Robot extends TimedRobot {
     // and running subsystem periodic() methods.  This must be called from the robot's periodic
     // block in order for anything in the Command-based framework to work.
 
+    m_roboPiLink.snapshotInputs();
     CommandScheduler.getInstance().run();
+    m_roboPiLink.publishCommands();
   }
 
   /** This function is called once each time the robot enters Disabled mode. */
@@ -0,0 +1,42 @@
+package frc.lib.robopilink;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class DeviceScheduleTest {
+    // long enough that no slice is ever put off
+    private static final long kBudgetNanos = 1_000_000_000L;
+
+    @Test
+    void unitTakesFastestTierOfItsDevices() {
+        PigpiojDevice light = () -> 5;
+        PigpiojDevice drive = () -> 6;
+        PigpiojDevice jumper = () -> 7;
+        Map<PigpiojDevice, ServiceTier> tiers = new IdentityHashMap<>();
+        tiers.put(light, ServiceTier.SLOW);
+        tiers.put(drive, ServiceTier.FAST);
+        tiers.put(jumper, ServiceTier.SLOW);
+        Object group = new Object();
+        DeviceSchedule schedule = new DeviceSchedule(new PigpiojDevice[] {light, drive, jumper}, tiers::get,
+            device -> device == jumper ? device : group);
+
+        Map<PigpiojDevice, Integer> services = new IdentityHashMap<>();
+        RoboPiLinkStats stats = new RoboPiLinkStats(new LoopTimer(RoboPiLink.kDefaultLoopPeriodSeconds), new Heartbeat());
+        for (int n = 0; n < ServiceTier.SLOW.getCycles(); n++) {
+            schedule.run(devices -> {
+                for (PigpiojDevice device : devices) {
+                    services.merge(device, 1, Integer::sum);
+                }
+            }, System.nanoTime(), kBudgetNanos, stats);
+        }
+
+        // the slow light goes with the fast drive it is grouped with
+        assertEquals(ServiceTier.SLOW.getCycles(), (int) services.get(light));
+        assertEquals(ServiceTier.SLOW.getCycles(), (int) services.get(drive));
+        assertEquals(1, (int) services.get(jumper));
+    }
+}
@@ -0,0 +1,531 @@
+package frc.lib.robopilink;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-process stand-in for pigpiod that listens on localhost and speaks enough of the pigpiod
+ * socket protocol for digital, PWM, servo, waveform, notification and watchdog commands.
+ *
+ * <p>It lets the real socket code paths ({@link PigpioConnection}, {@link PigpioNotifier} and
+ * diozero's pigpioj socket provider) run without a Raspberry Pi, with configurable latency, jitter,
+ * a bandwidth cap and dropped connections to reproduce bad Wi-Fi. Commands it does not model are
+ * answered with 0 and counted in {@link #getUnhandledCommandCount()}.
+ *
+ * <p>Inputs can be driven from the test side with {@link #setInputLevel(int, boolean)}.
+ */
+public class MockPigpiod implements AutoCloseable {
+    static final int MODE_INPUT = 0;
+    static final int MODE_OUTPUT = 1;
+
+    private static final int kPins = 54;
+    private static final int kMessageSize = 16;
+    private static final int kReportSize = 12;
+    private static final int kFlagWatchdog = 1 << 5;
+    private static final int kHardwareRevision = 0xa02082;
+    private static final int kPigpioVersion = 79;
+    private static final int kBadPulseWidth = -7;
+    private static final int kBadDutyCycle = -8;
+    private static final int kBadWaveId = -66;
+
+    private final ServerSocket m_server;
+    private final List<Socket> m_connections = new CopyOnWriteArrayList<>();
+    private final Map<Integer, Notification> m_notifications = new ConcurrentHashMap<>();
+    private final Random m_random = new Random();
+    private final long m_startNanos = System.nanoTime();
+
+    // pin state, guarded by this
+    private long m_levels = 0;
+    private final int[] m_modes = new int[kPins];
+    private final int[] m_pwmDutyCycle = new int[kPins];
+    private final int[] m_pwmRange = new int[kPins];
+    private final int[] m_pwmFrequency = new int[kPins];
+    private final int[] m_servoPulseWidth = new int[kPins];
+    private final int[] m_watchdogMillis = new int[kPins];
+    private final long[] m_lastChangeNanos = new long[kPins];
+    private final int[] m_glitchFilterMicros = new int[kPins];
+    private final int[] m_noiseFilterMicros = new int[kPins];
+    private int m_nextHandle = 0;
+
+    // waveforms as {on mask, off mask, delay} triples; pulses are added to m_wavePulses until created
+    private final List<int[]> m_wavePulses = new ArrayList<>();
+    private final Map<Integer, int[]> m_waves = new ConcurrentHashMap<>();
+    private int m_txWave = -1;
+
+    private volatile long m_latencyNanos = 0;
+    private final long[] m_commandLatencyNanos = new long[256];
+    private volatile long m_jitterNanos = 0;
+    private volatile long m_bytesPerSecond = 0;
+    private volatile double m_dropProbability = 0.0;
+
+    private volatile long m_commandCount = 0;
+    private volatile long m_unhandledCommandCount = 0;
+    private volatile boolean m_closed = false;
+
+    /**
+     * Starts listening on a free localhost port. Use {@link #getPort()} to connect to it.
+     */
+    public MockPigpiod() throws IOException {
+        this(0);
+    }
+
+    public MockPigpiod(int port) throws IOException {
+        m_server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        for (int pin = 0; pin < kPins; pin++) {
+            m_pwmRange[pin] = 255;
+            m_pwmFrequency[pin] = 800;
+        }
+
+        Thread acceptor = new Thread(this::acceptConnections, "MockPigpiod accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        Thread watchdog = new Thread(this::runWatchdogs, "MockPigpiod watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    public String getHost() {
+        return m_server.getInetAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return m_server.getLocalPort();
+    }
+
+    /** Delay added before every response. */
+    public void setLatency(double seconds) {
+        m_latencyNanos = (long) (seconds * 1e9);
+    }
+
+    /** Extra delay before the response to every {@code cmd}, on top of {@link #setLatency(double)}. */
+    public void setCommandLatency(int cmd, double seconds) {
+        m_commandLatencyNanos[cmd] = (long) (seconds * 1e9);
+    }
+
+    /** Extra random delay, uniformly distributed up to this amount, added before every response. */
+    public void setJitter(double seconds) {
+        m_jitterNanos = (long) (seconds * 1e9);
+    }
+
+    /** Caps the response rate of each connection; 0 means unlimited. */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        m_bytesPerSecond = bytesPerSecond;
+    }
+
+    /** Chance that any single request drops its connection instead of being answered. */
+    public void setDropProbability(double probability) {
+        m_dropProbability = probability;
+    }
+
+    /** Closes every open connection, as if the Wi-Fi link had gone down. */
+    public void dropAllConnections() {
+        for (Socket connection : m_connections) {
+            closeQuietly(connection);
+        }
+    }
+
+    /** Drives a pin from the outside world. Only has an effect while the pin is an input. */
+    public synchronized void setInputLevel(int pin, boolean level) {
+        if (m_modes[pin] == MODE_INPUT) {
+            setLevels(level ? m_levels | (1L << pin) : m_levels & ~(1L << pin));
+        }
+    }
+
+    public synchronized boolean getLevel(int pin) {
+        return (m_levels & (1L << pin)) != 0;
+    }
+
+    public synchronized int getMode(int pin) {
+        return m_modes[pin];
+    }
+
+    public synchronized int getPwmDutyCycle(int pin) {
+        return m_pwmDutyCycle[pin];
+    }
+
+    public synchronized int getGlitchFilterMicros(int pin) {
+        return m_glitchFilterMicros[pin];
+    }
+
+    public synchronized int getNoiseFilterMicros(int pin) {
+        return m_noiseFilterMicros[pin];
+    }
+
+    public synchronized int getServoPulseWidth(int pin) {
+        return m_servoPulseWidth[pin];
+    }
+
+    /**
+     * Gets the high time of the first pulse on a pin in the waveform being transmitted, or 0 if it
+     * is never high.
+     */
+    public synchronized int getWavePulseWidth(int pin) {
+        int[] wave = m_waves.get(m_txWave);
+        if (wave == null) return 0;
+        int bit = 1 << pin;
+        int time = 0;
+        int rise = -1;
+        for (int n = 0; n < wave.length; n += 3) {
+            if (rise < 0 && (wave[n] & bit) != 0) {
+                rise = time;
+            } else if (rise >= 0 && (wave[n + 1] & bit) != 0) {
+                return time - rise;
+            }
+            time += wave[n + 2];
+        }
+        return rise < 0 ? 0 : time - rise;
+    }
+
+    /** Gets the id of the waveform being transmitted, or -1. */
+    public synchronized int getTransmittedWave() {
+        return m_txWave;
+    }
+
+    /** Gets the number of created waveforms that have not been deleted. */
+    public int getWaveCount() {
+        return m_waves.size();
+    }
+
+    public long getCommandCount() {
+        return m_commandCount;
+    }
+
+    public long getUnhandledCommandCount() {
+        return m_unhandledCommandCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_closed = true;
+        m_server.close();
+        dropAllConnections();
+    }
+
+    private void acceptConnections() {
+        while (!m_closed) {
+            try {
+                Socket connection = m_server.accept();
+                connection.setTcpNoDelay(true);
+                m_connections.add(connection);
+                Thread handler = new Thread(() -> serve(connection), "MockPigpiod connection");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                if (!m_closed) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void serve(Socket connection) {
+        ByteBuffer request = ByteBuffer.allocate(kMessageSize).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer response = ByteBuffer.allocate(kMessageSize).order(ByteOrder.LITTLE_ENDIAN);
+        long nextFree = 0;
+        long arrival = 0;
+        boolean pipelined = false;
+        try {
+            DataInputStream in = new DataInputStream(connection.getInputStream());
+            OutputStream out = connection.getOutputStream();
+            while (true) {
+                request.clear();
+                in.readFully(request.array());
+                // a request that was already waiting before the previous response went out was sent
+                // in the same batch, so it arrived with that one and should not pay the latency again
+                if (!pipelined) {
+                    arrival = System.nanoTime();
+                }
+                int cmd = request.getInt(0);
+                int p1 = request.getInt(4);
+                int p2 = request.getInt(8);
+                int extLength = request.getInt(12);
+                byte[] ext = new byte[extLength];
+                in.readFully(ext);
+
+                if (m_dropProbability > 0 && m_random.nextDouble() < m_dropProbability) {
+                    break;
+                }
+
+                int result = handle(cmd, p1, p2, ext);
+
+                long due = arrival + m_latencyNanos;
+                if (cmd >= 0 && cmd < m_commandLatencyNanos.length) {
+                    due += m_commandLatencyNanos[cmd];
+                }
+                if (m_jitterNanos > 0) {
+                    due += (long) (m_random.nextDouble() * m_jitterNanos);
+                }
+                if (m_bytesPerSecond > 0) {
+                    due = Math.max(due, nextFree) + kMessageSize * 1_000_000_000L / m_bytesPerSecond;
+                    nextFree = due;
+                }
+                sleepUntil(due);
+                pipelined = in.available() >= kMessageSize;
+
+                boolean notifications = cmd == PigpioConnection.CMD_NOIB && result >= 0;
+                if (notifications) {
+                    // registered before the handle is answered, since the client can use it on
+                    // another connection as soon as it has it
+                    m_notifications.put(result, new Notification(connection, out));
+                }
+
+                response.clear();
+                response.putInt(cmd).putInt(p1).putInt(p2).putInt(result);
+                out.write(response.array());
+                out.flush();
+
+                if (notifications) {
+                    // from here on this socket only carries notification reports
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // the client went away or the connection was dropped
+        }
+        m_connections.remove(connection);
+        closeQuietly(connection);
+    }
+
+    private synchronized int handle(int cmd, int p1, int p2, byte[] ext) {
+        m_commandCount++;
+        switch (cmd) {
+            case PigpioConnection.CMD_MODES:
+                m_modes[p1] = p2;
+                return 0;
+            case PigpioConnection.CMD_MODEG:
+                return m_modes[p1];
+            case PigpioConnection.CMD_PUD:
+                if (m_modes[p1] == MODE_INPUT && p2 != 0) {
+                    // 1 is pull down, 2 is pull up
+                    setLevels(p2 == 2 ? m_levels | (1L << p1) : m_levels & ~(1L << p1));
+                }
+                return 0;
+            case PigpioConnection.CMD_READ:
+                return getLevel(p1) ? 1 : 0;
+            case PigpioConnection.CMD_WRITE:
+                m_modes[p1] = MODE_OUTPUT;
+                m_pwmDutyCycle[p1] = 0;
+                m_servoPulseWidth[p1] = 0;
+                setLevels(p2 != 0 ? m_levels | (1L << p1) : m_levels & ~(1L << p1));
+                return 0;
+            case PigpioConnection.CMD_PWM:
+                if (p2 < 0 || p2 > m_pwmRange[p1]) return kBadDutyCycle;
+                m_modes[p1] = MODE_OUTPUT;
+                m_pwmDutyCycle[p1] = p2;
+                return 0;
+            case PigpioConnection.CMD_PRS:
+                m_pwmRange[p1] = p2;
+                return p2;
+            case PigpioConnection.CMD_PFS:
+                m_pwmFrequency[p1] = p2;
+                return p2;
+            case PigpioConnection.CMD_PRG:
+            case PigpioConnection.CMD_PRRG:
+                return m_pwmRange[p1];
+            case PigpioConnection.CMD_PFG:
+                return m_pwmFrequency[p1];
+            case PigpioConnection.CMD_GDC:
+                return m_pwmDutyCycle[p1];
+            case PigpioConnection.CMD_SERVO:
+                if (p2 != 0 && (p2 < 500 || p2 > 2500)) return kBadPulseWidth;
+                m_modes[p1] = MODE_OUTPUT;
+                m_servoPulseWidth[p1] = p2;
+                return 0;
+            case PigpioConnection.CMD_GPW:
+                return m_servoPulseWidth[p1];
+            case PigpioConnection.CMD_WDOG:
+                m_watchdogMillis[p1] = p2;
+                m_lastChangeNanos[p1] = System.nanoTime();
+                return 0;
+            case PigpioConnection.CMD_BR1:
+                return (int) m_levels;
+            case PigpioConnection.CMD_BR2:
+                return (int) (m_levels >>> 32);
+            case PigpioConnection.CMD_BS1:
+                setLevels(m_levels | (outputMask() & Integer.toUnsignedLong(p1)));
+                return 0;
+            case PigpioConnection.CMD_BS2:
+                setLevels(m_levels | (outputMask() & (Integer.toUnsignedLong(p1) << 32)));
+                return 0;
+            case PigpioConnection.CMD_BC1:
+                setLevels(m_levels & ~(outputMask() & Integer.toUnsignedLong(p1)));
+                return 0;
+            case PigpioConnection.CMD_BC2:
+                setLevels(m_levels & ~(outputMask() & (Integer.toUnsignedLong(p1) << 32)));
+                return 0;
+            case PigpioConnection.CMD_TICK:
+                return tick();
+            case PigpioConnection.CMD_HWVER:
+                return kHardwareRevision;
+            case PigpioConnection.CMD_PIGPV:
+                return kPigpioVersion;
+            case PigpioConnection.CMD_NOIB:
+                return m_nextHandle++;
+            case PigpioConnection.CMD_NB: {
+                Notification notification = m_notifications.get(p1);
+                if (notification == null) return PigpioConnection.PI_BAD_HANDLE;
+                notification.m_bits = p2;
+                return 0;
+            }
+            case PigpioConnection.CMD_NP: {
+                Notification notification = m_notifications.get(p1);
+                if (notification == null) return PigpioConnection.PI_BAD_HANDLE;
+                notification.m_bits = 0;
+                return 0;
+            }
+            case PigpioConnection.CMD_NC: {
+                Notification notification = m_notifications.remove(p1);
+                if (notification == null) return PigpioConnection.PI_BAD_HANDLE;
+                closeQuietly(notification.m_socket);
+                return 0;
+            }
+            case PigpioConnection.CMD_FG:
+                m_glitchFilterMicros[p1] = p2;
+                return 0;
+            case PigpioConnection.CMD_FN:
+                // only the steady period is kept; filters are recorded, not applied
+                m_noiseFilterMicros[p1] = p2;
+                return 0;
+            case PigpioConnection.CMD_WVCLR:
+                m_wavePulses.clear();
+                m_waves.clear();
+                m_txWave = -1;
+                return 0;
+            case PigpioConnection.CMD_WVAG: {
+                ByteBuffer pulses = ByteBuffer.wrap(ext).order(ByteOrder.LITTLE_ENDIAN);
+                while (pulses.remaining() >= 12) {
+                    m_wavePulses.add(new int[] {pulses.getInt(), pulses.getInt(), pulses.getInt()});
+                }
+                return m_wavePulses.size();
+            }
+            case PigpioConnection.CMD_WVCRE: {
+                int id = 0;
+                while (m_waves.containsKey(id)) id++;
+                int[] wave = new int[m_wavePulses.size() * 3];
+                for (int n = 0; n < m_wavePulses.size(); n++) {
+                    System.arraycopy(m_wavePulses.get(n), 0, wave, n * 3, 3);
+                }
+                m_wavePulses.clear();
+                m_waves.put(id, wave);
+                return id;
+            }
+            case PigpioConnection.CMD_WVDEL:
+                if (m_waves.remove(p1) == null) return kBadWaveId;
+                if (m_txWave == p1) m_txWave = -1;
+                return 0;
+            case PigpioConnection.CMD_WVTXR:
+            case PigpioConnection.CMD_WVTXM: {
+                int[] wave = m_waves.get(p1);
+                if (wave == null) return kBadWaveId;
+                m_txWave = p1;
+                int length = 0;
+                for (int n = 2; n < wave.length; n += 3) length += wave[n];
+                return length;
+            }
+            default:
+                m_unhandledCommandCount++;
+                return 0;
+        }
+    }
+
+    private long outputMask() {
+        long mask = 0;
+        for (int pin = 0; pin < kPins; pin++) {
+            if (m_modes[pin] == MODE_OUTPUT) mask |= 1L << pin;
+        }
+        return mask;
+    }
+
+    private void setLevels(long levels) {
+        long changed = levels ^ m_levels;
+        m_levels = levels;
+        if (changed == 0) return;
+
+        long now = System.nanoTime();
+        for (long bits = changed; bits != 0; bits &= bits - 1) {
+            m_lastChangeNanos[Long.numberOfTrailingZeros(bits)] = now;
+        }
+        for (Notification notification : m_notifications.values()) {
+            if ((notification.m_bits & changed) != 0) {
+                notification.report(0, tick(), (int) levels);
+            }
+        }
+    }
+
+    private void runWatchdogs() {
+        while (!m_closed) {
+            synchronized (this) {
+                long now = System.nanoTime();
+                for (int pin = 0; pin < kPins; pin++) {
+                    int timeout = m_watchdogMillis[pin];
+                    if (timeout == 0 || now - m_lastChangeNanos[pin] < timeout * 1_000_000L) continue;
+                    m_lastChangeNanos[pin] = now;
+                    for (Notification notification : m_notifications.values()) {
+                        if ((notification.m_bits & (1 << pin)) != 0) {
+                            notification.report(kFlagWatchdog | pin, tick(), (int) m_levels);
+                        }
+                    }
+                }
+            }
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    private int tick() {
+        return (int) ((System.nanoTime() - m_startNanos) / 1000);
+    }
+
+    private static void sleepUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    private class Notification {
+        private final Socket m_socket;
+        private final OutputStream m_out;
+        private final ByteBuffer m_report = ByteBuffer.allocate(kReportSize).order(ByteOrder.LITTLE_ENDIAN);
+        private volatile int m_bits = 0;
+        private int m_sequence = 0;
+
+        Notification(Socket socket, OutputStream out) {
+            m_socket = socket;
+            m_out = out;
+        }
+
+        void report(int flags, int tick, int levels) {
+            m_report.clear();
+            m_report.putShort((short) m_sequence++).putShort((short) flags).putInt(tick).putInt(levels);
+            try {
+                m_out.write(m_report.array());
+                m_out.flush();
+            } catch (IOException e) {
+                m_notifications.values().remove(this);
+                closeQuietly(m_socket);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package frc.lib.robopilink;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.diozero.api.GpioPullUpDown;
+
+class MockPigpiodTest {
+    private MockPigpiod m_pigpiod;
+    private PigpioConnection m_pigpio;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        m_pigpiod = new MockPigpiod();
+        m_pigpio = new PigpioConnection(m_pigpiod.getHost(), m_pigpiod.getPort());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        m_pigpio.close();
+        m_pigpiod.close();
+    }
+
+    @Test
+    void batchReturnsEveryResult() throws IOException {
+        m_pigpio.queue(PigpioConnection.CMD_MODES, 5, MockPigpiod.MODE_OUTPUT);
+        m_pigpio.queue(PigpioConnection.CMD_PRS, 5, 1000);
+        m_pigpio.queue(PigpioConnection.CMD_PRG, 5, 0);
+        m_pigpio.queue(PigpioConnection.CMD_PRG, 6, 0);
+        assertEquals(4, m_pigpio.getQueuedCount());
+
+        assertEquals(255, m_pigpio.flush());
+        assertEquals(0, m_pigpio.getQueuedCount());
+        assertEquals(4, m_pigpio.getResultCount());
+        assertEquals(0, m_pigpio.getResult(0));
+        assertEquals(1000, m_pigpio.getResult(1));
+        assertEquals(1000, m_pigpio.getResult(2));
+        assertEquals(255, m_pigpio.getResult(3));
+        assertThrows(IndexOutOfBoundsException.class, () -> m_pigpio.getResult(4));
+    }
+
+    @Test
+    void batchPastLimitKeepsLastPart() throws IOException {
+        for (int n = 0; n < PigpioConnection.kMaxBatch + 3; n++) {
+            m_pigpio.queue(PigpioConnection.CMD_TICK, 0, 0);
+        }
+        m_pigpio.flush();
+        assertEquals(3, m_pigpio.getResultCount());
+        assertEquals(PigpioConnection.kMaxBatch + 3, m_pigpiod.getCommandCount());
+    }
+
+    @Test
+    void failedCommandFailsBatch() throws IOException {
+        m_pigpio.queue(PigpioConnection.CMD_TICK, 0, 0);
+        m_pigpio.queue(PigpioConnection.CMD_NB, 42, 1);
+        IOException e = assertThrows(IOException.class, m_pigpio::flush);
+        assertTrue(e.getMessage().contains("error " + PigpioConnection.PI_BAD_HANDLE), e.getMessage());
+        assertEquals(2, m_pigpio.getResultCount());
+    }
+
+    @Test
+    void bankWriteOnlyDrivesOutputs() throws IOException {
+        m_pigpio.queue(PigpioConnection.CMD_MODES, 4, MockPigpiod.MODE_OUTPUT);
+        m_pigpio.queue(PigpioConnection.CMD_MODES, 40, MockPigpiod.MODE_OUTPUT);
+        m_pigpio.queueInputSetup(7, GpioPullUpDown.NONE);
+        m_pigpio.queueBankWrite(1 << 4 | 1 << 7, 0, 1 << 8, 0);
+        m_pigpio.flush();
+
+        assertTrue(m_pigpiod.getLevel(4));
+        assertTrue(m_pigpiod.getLevel(40));
+        assertFalse(m_pigpiod.getLevel(7));
+        assertEquals(1L << 4 | 1L << 40, m_pigpio.readBanks());
+
+        m_pigpio.queueBankWrite(0, 1 << 4, 0, 1 << 8);
+        m_pigpio.flush();
+        assertEquals(0L, m_pigpio.readBanks());
+    }
+
+    @Test
+    void bankReadSeesInputsAndPulls() throws IOException {
+        m_pigpio.queueInputSetup(9, GpioPullUpDown.PULL_UP);
+        m_pigpio.queueInputSetup(31, GpioPullUpDown.NONE);
+        m_pigpio.flush();
+        m_pigpiod.setInputLevel(31, true);
+
+        assertEquals(1L << 9 | 1L << 31, m_pigpio.readBanks());
+        assertEquals(1 << 9 | 1 << 31, m_pigpio.readBank1());
+    }
+
+    @Test
+    void notifierReportsWatchedChanges() throws Exception {
+        m_pigpio.queueInputSetup(17, GpioPullUpDown.NONE);
+        m_pigpio.queueInputSetup(18, GpioPullUpDown.NONE);
+        m_pigpio.flush();
+        m_pigpiod.setInputLevel(17, true);
+
+        try (PigpioNotifier notifier = new PigpioNotifier(m_pigpio)) {
+            notifier.watch(17);
+            assertTrue(notifier.isWatched(17));
+            assertFalse(notifier.isWatched(18));
+            assertTrue(notifier.getLevel(17));
+
+            CountDownLatch changes = new CountDownLatch(2);
+            AtomicInteger changed = new AtomicInteger();
+            notifier.addListener(1 << 17, (tick, levels, bits) -> {
+                changed.accumulateAndGet(bits, (a, b) -> a | b);
+                changes.countDown();
+            });
+            m_pigpiod.setInputLevel(18, true);
+            m_pigpiod.setInputLevel(17, false);
+            m_pigpiod.setInputLevel(17, true);
+
+            assertTrue(changes.await(1, TimeUnit.SECONDS));
+            assertEquals(1 << 17, changed.get());
+            // edges are counted after the listeners run
+            waitFor(() -> notifier.getEdgeCount(17) == 2);
+            assertEquals(0, notifier.getEdgeCount(18));
+            assertTrue(notifier.getLevel(17));
+        }
+    }
+
+    @Test
+    void droppedConnectionsFailAndReconnect() throws Exception {
+        CountDownLatch failed = new CountDownLatch(1);
+        PigpioNotifier notifier = new PigpioNotifier(m_pigpio, e -> failed.countDown());
+        m_pigpio.command(PigpioConnection.CMD_TICK, 0, 0);
+
+        m_pigpiod.dropAllConnections();
+
+        assertThrows(IOException.class, () -> m_pigpio.command(PigpioConnection.CMD_TICK, 0, 0));
+        assertTrue(failed.await(1, TimeUnit.SECONDS));
+        // its handle went with the connection it was opened on
+        assertThrows(IOException.class, notifier::close);
+
+        try (PigpioConnection pigpio = new PigpioConnection(m_pigpiod.getHost(), m_pigpiod.getPort())) {
+            assertEquals(0, pigpio.command(PigpioConnection.CMD_MODES, 3, MockPigpiod.MODE_OUTPUT));
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(1);
+        }
+    }
+}
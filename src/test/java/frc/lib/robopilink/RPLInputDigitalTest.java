@@ -0,0 +1,81 @@
+package frc.lib.robopilink;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.diozero.internal.provider.mock.MockDeviceFactory;
+
+class RPLInputDigitalTest {
+    private static final long kTimeoutNanos = 5_000_000_000L;
+
+    private MockPigpiod m_pigpiod;
+    private RoboPiLink m_link;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        m_pigpiod = new MockPigpiod();
+        MockDeviceFactory factory = new MockDeviceFactory();
+        new MockBoardConfigurator().configure(factory.getBoardPinInfo());
+        PigpioConnection pigpio = new PigpioConnection(m_pigpiod.getHost(), m_pigpiod.getPort());
+        m_link = new RoboPiLink(factory, OptionalInt.empty(), Optional.of(pigpio));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        m_pigpiod.close();
+    }
+
+    @Test
+    void everyEdgeGetsItsOwnPulse() throws Exception {
+        RPLInputDigital input = new RPLInputDigital(m_link, 12);
+        // pulled up, so released is low
+        m_pigpiod.setInputLevel(12, false);
+        waitFor(() -> {
+            cycle();
+            return !input.getValue();
+        });
+        BooleanSupplier pressed = input.risingEdge();
+
+        // two presses before the condition is checked again
+        for (int n = 0; n < 2; n++) {
+            m_pigpiod.setInputLevel(12, true);
+            waitFor(() -> {
+                cycle();
+                return input.getValue();
+            });
+            m_pigpiod.setInputLevel(12, false);
+            waitFor(() -> {
+                cycle();
+                return !input.getValue();
+            });
+        }
+
+        boolean[] checks = new boolean[5];
+        for (int n = 0; n < checks.length; n++) {
+            checks[n] = pressed.getAsBoolean();
+        }
+        assertArrayEquals(new boolean[] {true, false, true, false, false}, checks);
+    }
+
+    private void cycle() {
+        m_link.runCycle(false);
+        m_link.block();
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + kTimeoutNanos;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+}
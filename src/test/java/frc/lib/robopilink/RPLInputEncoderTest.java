@@ -0,0 +1,141 @@
+package frc.lib.robopilink;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.diozero.internal.provider.mock.MockDeviceFactory;
+
+class RPLInputEncoderTest {
+    private static final long kTimeoutNanos = 5_000_000_000L;
+
+    private MockPigpiod m_pigpiod;
+    private RoboPiLink m_link;
+    // stands in for robopilinkd's encoder counting
+    private ServerSocket m_robopilinkd;
+    private Socket m_counter;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        m_pigpiod = new MockPigpiod();
+        MockDeviceFactory factory = new MockDeviceFactory();
+        new MockBoardConfigurator().configure(factory.getBoardPinInfo());
+        PigpioConnection pigpio = new PigpioConnection(m_pigpiod.getHost(), m_pigpiod.getPort());
+        m_link = new RoboPiLink(factory, OptionalInt.empty(), Optional.of(pigpio));
+        m_robopilinkd = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        m_link.setRobopilinkdPort(m_robopilinkd.getLocalPort());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (m_counter != null) {
+            m_counter.close();
+        }
+        m_robopilinkd.close();
+        m_pigpiod.close();
+    }
+
+    @Test
+    void countsComeFromPi() throws Exception {
+        Thread accept = new Thread(() -> serveCounts());
+        accept.start();
+        RPLInputEncoder encoder = new RPLInputEncoder(m_link, 5, 6);
+        accept.join();
+
+        assertTrue(encoder.isCountedOnPi());
+        assertFalse(encoder.isNotificationBacked());
+        waitFor(() -> {
+            cycle();
+            return encoder.getCount() == 97;
+        });
+        // the period of the last batch, counting down
+        assertEquals(-2000.0, encoder.getRate(), 1e-9);
+        assertEquals(1, encoder.getErrorCount());
+    }
+
+    @Test
+    void batchedExchangeReadsSnapshot() throws Exception {
+        m_link.setBatchedExchange(true);
+        Thread accept = new Thread(() -> serveCounts());
+        accept.start();
+        RPLInputEncoder encoder = new RPLInputEncoder(m_link, 5, 6);
+        accept.join();
+
+        // the main loop has the counts, but robot code only sees them once it takes a snapshot
+        waitFor(() -> {
+            cycle();
+            return m_link.getPublishedInput(5) == 97;
+        });
+        assertEquals(0, encoder.getCount());
+        assertEquals(0.0, encoder.getRate());
+        cycle();
+        m_link.snapshotInputs();
+        assertEquals(97, encoder.getCount());
+        assertEquals(-2000.0, encoder.getRate(), 1e-9);
+
+        encoder.reset();
+        assertEquals(0, encoder.getCount());
+        assertEquals(0.0, encoder.getDistance());
+    }
+
+    private void serveCounts() {
+        try {
+            Socket socket = m_robopilinkd.accept();
+            m_counter = socket;
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream out = socket.getOutputStream();
+            assertTrue(in.readLine().startsWith("encoders "));
+            out.write("ok\n".getBytes(StandardCharsets.US_ASCII));
+            assertEquals("watch 0 5 6", in.readLine());
+            out.write("counts 0 100 250 0\ncounts 0 -3 -500 1\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    void fallsBackToNotificationsWithoutRobopilinkd() throws Exception {
+        m_robopilinkd.close();
+        RPLInputEncoder encoder = new RPLInputEncoder(m_link, 5, 6);
+
+        assertFalse(encoder.isCountedOnPi());
+        assertTrue(encoder.isNotificationBacked());
+        // both pulled up, then A leads B down
+        m_pigpiod.setInputLevel(5, false);
+        m_pigpiod.setInputLevel(6, false);
+        waitFor(() -> {
+            cycle();
+            return encoder.getCount() == 2;
+        });
+    }
+
+    private void cycle() {
+        m_link.runCycle(false);
+        m_link.block();
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + kTimeoutNanos;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package frc.lib.robopilink;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.diozero.internal.provider.mock.MockDeviceFactory;
+
+class RPLOutputGroupTest {
+    private static final int kCycles = 20;
+    private static final long kTimeoutNanos = 5_000_000_000L;
+
+    private MockPigpiod m_pigpiod;
+    private RoboPiLink m_link;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        m_pigpiod = new MockPigpiod();
+        MockDeviceFactory factory = new MockDeviceFactory();
+        new MockBoardConfigurator().configure(factory.getBoardPinInfo());
+        PigpioConnection pigpio = new PigpioConnection(m_pigpiod.getHost(), m_pigpiod.getPort());
+        m_link = new RoboPiLink(factory, OptionalInt.empty(), Optional.of(pigpio));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        m_pigpiod.close();
+    }
+
+    @Test
+    void membersLeaveTogether() {
+        RPLOutputServo left = new RPLOutputServo(m_link, 5);
+        RPLOutputServo right = new RPLOutputServo(m_link, 6);
+        RPLOutputDigital light = new RPLOutputDigital(m_link, 7);
+        RPLOutputGroup group = new RPLOutputGroup(m_link, left, right, light);
+        m_link.runCycle(false);
+        m_link.block();
+
+        group.begin();
+        left.setValue(OptionalDouble.of(0.5));
+        cycle();
+        assertEquals(1500, m_pigpiod.getServoPulseWidth(5), "held back until commit");
+
+        right.setValue(OptionalDouble.of(-0.5));
+        light.setValue(true);
+        group.commit();
+        cycle();
+        assertEquals(1750, m_pigpiod.getServoPulseWidth(5));
+        assertEquals(1250, m_pigpiod.getServoPulseWidth(6));
+        assertTrue(m_pigpiod.getLevel(7));
+        assertEquals(1, group.getSkew().getCount());
+    }
+
+    @Test
+    void skewIsMeasuredAlongsideServoGroup() throws InterruptedException {
+        RPLServoGroup waves = new RPLServoGroup(m_link);
+        RPLOutputServo[] waveServos = {
+            new RPLOutputServo(m_link, 10, waves),
+            new RPLOutputServo(m_link, 11, waves),
+        };
+        RPLOutputServo left = new RPLOutputServo(m_link, 5);
+        RPLOutputServo right = new RPLOutputServo(m_link, 6);
+        RPLOutputPWM pwm = new RPLOutputPWM(m_link, 8);
+        RPLOutputGroup group = new RPLOutputGroup(m_link, left, right, pwm);
+        m_link.runCycle(false);
+        m_link.block();
+
+        for (int n = 0; n < kCycles; n++) {
+            double value = (n + 1) / (double) kCycles;
+            // a new waveform every pass, whose creation sends everything queued before it
+            waveServos[0].setValue(OptionalDouble.of(value));
+            waveServos[1].setValue(OptionalDouble.of(-value));
+            group.begin();
+            left.setValue(OptionalDouble.of(value));
+            right.setValue(OptionalDouble.of(-value));
+            pwm.setValue(value);
+            group.commit();
+            cycle();
+            // let the waveform be swapped again next pass
+            Thread.sleep(RPLServoGroup.kFramePeriodUs / 1000 + 5);
+        }
+
+        assertEquals(kCycles, group.getSkew().getCount(), "every pass that wrote the group has a skew");
+        assertTrue(group.getSkew().getMax() < 100_000_000L, "skew " + group.getSkew().getMax() + " ns");
+        assertEquals(2000, m_pigpiod.getServoPulseWidth(5));
+        assertEquals(1000, m_pigpiod.getServoPulseWidth(6));
+        assertEquals(255, m_pigpiod.getPwmDutyCycle(8));
+        assertTrue(m_pigpiod.getTransmittedWave() >= 0);
+    }
+
+    @Test
+    void stalledWaveLaneIsRetried() throws InterruptedException {
+        m_link.enableConnectionPool(2);
+        RPLOutputServo first = new RPLOutputServo(m_link, 10, new RPLServoGroup(m_link));
+        RPLOutputServo second = new RPLOutputServo(m_link, 11, new RPLServoGroup(m_link));
+        cycle();
+        first.setValue(OptionalDouble.of(1.0));
+        second.setValue(OptionalDouble.of(1.0));
+        cycle();
+        // the waveforms of the first cycle may hold these back for a frame
+        waitFor(() -> m_pigpiod.getWavePulseWidth(11) == 2000);
+
+        // the lane is still sending the second group's waveform when the pass gives up on it, each
+        // response within the read timeout
+        Thread.sleep(RPLServoGroup.kFramePeriodUs / 1000 + 5);
+        m_pigpiod.setCommandLatency(PigpioConnection.CMD_WVCRE, 0.6);
+        m_pigpiod.setCommandLatency(PigpioConnection.CMD_WVTXM, 0.6);
+        second.setValue(OptionalDouble.of(0.0));
+        cycle();
+        // the lane has already been through the first group, so this is left for the next pass
+        first.setValue(OptionalDouble.of(-1.0));
+        cycle();
+        m_pigpiod.setCommandLatency(PigpioConnection.CMD_WVCRE, 0);
+        m_pigpiod.setCommandLatency(PigpioConnection.CMD_WVTXM, 0);
+
+        // with no further cycles, the runner has to come back for it itself
+        waitFor(() -> m_pigpiod.getWavePulseWidth(10) == 1000);
+    }
+
+    @Test
+    void rejectsServoGroupMembersAndOverlap() {
+        RPLServoGroup waves = new RPLServoGroup(m_link);
+        RPLOutputServo waveServo = new RPLOutputServo(m_link, 10, waves);
+        RPLOutputServo servo = new RPLOutputServo(m_link, 5);
+        RPLInputDigital input = new RPLInputDigital(m_link, 12);
+
+        assertThrows(IllegalArgumentException.class, () -> new RPLOutputGroup(m_link, waveServo));
+        assertThrows(IllegalArgumentException.class, () -> new RPLOutputGroup(m_link, input));
+        new RPLOutputGroup(m_link, servo);
+        assertThrows(RuntimeException.class, () -> new RPLOutputGroup(m_link, servo));
+    }
+
+    private void cycle() {
+        m_link.runCycle(false);
+        m_link.block();
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + kTimeoutNanos;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+}
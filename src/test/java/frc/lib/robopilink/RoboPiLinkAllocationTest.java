@@ -0,0 +1,92 @@
+package frc.lib.robopilink;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.util.OptionalDouble;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Checks that the main loop cycle allocates nothing on the thread that runs it, so a link left
+ * running for a whole match never makes the garbage collector pause the robot.
+ */
+class RoboPiLinkAllocationTest {
+    // the first pin of the mock board; a simulated link has no heartbeat pin, so every pin is free
+    private static final int kFirstPort = 2;
+    private static final int kDevicesPerType = 4;
+    // enough cycles for the loop to be compiled before it is measured
+    private static final int kWarmUpCycles = 20_000;
+    private static final int kCycles = 1_000;
+
+    private static final OptionalDouble kForward = OptionalDouble.of(0.5);
+    private static final OptionalDouble kReverse = OptionalDouble.of(-0.5);
+
+    private final ThreadMXBean m_threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private RoboPiLink m_link;
+    private final RPLOutputDigital[] m_digitals = new RPLOutputDigital[kDevicesPerType];
+    private final RPLOutputPWM[] m_pwms = new RPLOutputPWM[kDevicesPerType];
+    private final RPLOutputServo[] m_servos = new RPLOutputServo[kDevicesPerType];
+
+    @BeforeEach
+    void setUp() {
+        m_link = RoboPiLink.remotePi("localhost", true);
+        int port = kFirstPort;
+        for (int n = 0; n < kDevicesPerType; n++) {
+            m_digitals[n] = new RPLOutputDigital(m_link, port++);
+            m_pwms[n] = new RPLOutputPWM(m_link, port++);
+            m_servos[n] = new RPLOutputServo(m_link, port++);
+            new RPLInputDigital(m_link, port++);
+        }
+        // leave the disabled state so every measured cycle is an enabled periodic
+        m_link.runCycle(false);
+        m_link.block();
+    }
+
+    @Test
+    void unchangedCycleAllocatesNothing() {
+        for (int n = 0; n < kWarmUpCycles; n++) {
+            m_link.runCycle(false);
+        }
+        m_link.block();
+
+        long before = m_threads.getCurrentThreadAllocatedBytes();
+        for (int n = 0; n < kCycles; n++) {
+            m_link.runCycle(false);
+        }
+        long allocated = m_threads.getCurrentThreadAllocatedBytes() - before;
+
+        assertEquals(0, allocated, "bytes allocated over " + kCycles + " cycles");
+    }
+
+    @Test
+    void changedCycleAllocatesNothing() {
+        for (int n = 0; n < kWarmUpCycles; n++) {
+            changeAll(n % 2 == 0);
+            m_link.runCycle(false);
+            m_link.block();
+        }
+
+        long before = m_threads.getCurrentThreadAllocatedBytes();
+        for (int n = 0; n < kCycles; n++) {
+            changeAll(n % 2 == 0);
+            m_link.runCycle(false);
+            m_link.block();
+        }
+        long allocated = m_threads.getCurrentThreadAllocatedBytes() - before;
+
+        assertEquals(0, allocated, "bytes allocated over " + kCycles + " cycles");
+    }
+
+    private void changeAll(boolean toggle) {
+        for (int n = 0; n < kDevicesPerType; n++) {
+            m_digitals[n].setValue(toggle);
+            m_pwms[n].setValue(toggle ? 0.75 : 0.25);
+            m_servos[n].setValue(toggle ? kForward : kReverse);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package frc.lib.robopilink;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.diozero.internal.provider.mock.MockDeviceFactory;
+
+class RoboPiLinkReconnectTest {
+    private static final long kTimeoutNanos = 5_000_000_000L;
+
+    private MockPigpiod m_pigpiod;
+    private RoboPiLink m_link;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        m_pigpiod = new MockPigpiod();
+        m_link = new RoboPiLink(newDeviceFactory(), OptionalInt.empty(), Optional.of(newConnection()));
+        m_link.enableReconnect(RoboPiLinkReconnectTest::newDeviceFactory, this::newConnection);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        m_pigpiod.close();
+    }
+
+    private static MockDeviceFactory newDeviceFactory() {
+        MockDeviceFactory factory = new MockDeviceFactory();
+        new MockBoardConfigurator().configure(factory.getBoardPinInfo());
+        return factory;
+    }
+
+    private PigpioConnection newConnection() throws IOException {
+        return new PigpioConnection(m_pigpiod.getHost(), m_pigpiod.getPort());
+    }
+
+    @Test
+    void silentPiTimesOut() throws IOException {
+        try (PigpioConnection pigpio = newConnection()) {
+            m_pigpiod.setLatency(PigpioConnection.kReadTimeoutMs * 3 / 1000.0);
+            long start = System.nanoTime();
+            assertThrows(IOException.class, () -> pigpio.command(PigpioConnection.CMD_TICK, 0, 0));
+            assertTrue(System.nanoTime() - start < PigpioConnection.kReadTimeoutMs * 2 * 1_000_000L);
+
+            // the late response must not be taken for the next command's
+            m_pigpiod.setLatency(0);
+            assertThrows(IOException.class, () -> pigpio.command(PigpioConnection.CMD_TICK, 0, 0));
+        }
+    }
+
+    @Test
+    void droppedConnectionRestoresPins() throws Exception {
+        RPLOutputDigital output = new RPLOutputDigital(m_link, 5);
+        RPLInputDigital input = new RPLInputDigital(m_link, 12);
+        output.setValue(true);
+        waitFor(() -> {
+            cycle();
+            return m_pigpiod.getLevel(5);
+        });
+
+        m_pigpiod.dropAllConnections();
+        waitFor(() -> {
+            cycle();
+            return m_link.getStats().getDisconnects() == 1 && m_link.isConnected();
+        });
+
+        assertEquals(MockPigpiod.MODE_OUTPUT, m_pigpiod.getMode(5));
+        assertEquals(MockPigpiod.MODE_INPUT, m_pigpiod.getMode(12));
+        output.setValue(false);
+        m_pigpiod.setInputLevel(12, true);
+        waitFor(() -> {
+            cycle();
+            return !m_pigpiod.getLevel(5) && input.getValue();
+        });
+        assertFalse(output.isStale());
+        assertFalse(input.isStale());
+    }
+
+    @Test
+    void rejectedValueDoesNotReconnect() throws Exception {
+        RPLOutputPWM pwm = new RPLOutputPWM(m_link, 8);
+        RPLOutputDigital output = new RPLOutputDigital(m_link, 5);
+        pwm.setValue(0.5);
+        waitFor(() -> {
+            cycle();
+            return m_pigpiod.getPwmDutyCycle(8) == 128;
+        });
+
+        // another program shrinks the range, so the next duty cycle is out of it
+        try (PigpioConnection pigpio = newConnection()) {
+            pigpio.command(PigpioConnection.CMD_PRS, 8, 100);
+        }
+        pwm.setValue(1.0);
+        output.setValue(true);
+        waitFor(() -> {
+            cycle();
+            return m_link.getStats().getCommandErrors() > 0;
+        });
+        for (int n = 0; n < 10; n++) {
+            cycle();
+        }
+
+        // the rest of the batch still went out
+        assertTrue(m_pigpiod.getLevel(5));
+        assertEquals(128, m_pigpiod.getPwmDutyCycle(8));
+        assertEquals(0, m_link.getStats().getDisconnects());
+        assertTrue(m_link.isConnected());
+        assertFalse(pwm.isStale());
+        assertFalse(output.isStale());
+    }
+
+    @Test
+    void reconnectsWhileLoopRuns() throws Exception {
+        RPLOutputDigital[] outputs = new RPLOutputDigital[4];
+        for (int n = 0; n < outputs.length; n++) {
+            outputs[n] = new RPLOutputDigital(m_link, 5 + n);
+        }
+        new RPLInputDigital(m_link, 12);
+
+        // drop the connection under a loop that keeps writing, as the main loop would
+        Thread loop = new Thread(() -> {
+            for (int n = 0; !Thread.currentThread().isInterrupted(); n++) {
+                for (RPLOutputDigital output : outputs) {
+                    output.setValue(n % 2 == 0);
+                }
+                m_link.runCycle(false);
+            }
+        });
+        loop.start();
+        try {
+            for (int drop = 1; drop <= 3; drop++) {
+                Thread.sleep(50);
+                m_pigpiod.dropAllConnections();
+                long disconnects = drop;
+                waitFor(() -> m_link.getStats().getDisconnects() == disconnects && m_link.isConnected());
+            }
+        } finally {
+            loop.interrupt();
+            loop.join();
+        }
+
+        for (RPLOutputDigital output : outputs) {
+            output.setValue(true);
+        }
+        waitFor(() -> {
+            cycle();
+            return m_pigpiod.getLevel(5) && m_pigpiod.getLevel(6) && m_pigpiod.getLevel(7) && m_pigpiod.getLevel(8);
+        });
+    }
+
+    private void cycle() {
+        m_link.runCycle(false);
+        m_link.block();
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + kTimeoutNanos;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package frc.lib.robopilink;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RoboPiLinkReplayTest {
+    private static final long kCyclePeriodNanos = 10_000_000L;
+    private static final int kCycles = 20;
+    private static final int kPort = 12;
+
+    private Path m_file;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        m_file = Files.createTempFile("robopilink", ".rec");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.deleteIfExists(m_file);
+    }
+
+    @Test
+    void debounceUsesRecordedTimes() throws IOException {
+        // a 10 ms pulse at cycle 5 and a level that holds from cycle 10, 10 ms apart
+        try (RoboPiLinkRecorder recorder = new RoboPiLinkRecorder(m_file, 1024)) {
+            long start = System.nanoTime();
+            for (int n = 0; n < kCycles; n++) {
+                long nanos = start + n * kCyclePeriodNanos;
+                recorder.record(RoboPiLinkRecorder.kCycle, 0, 0, nanos);
+                if (n == 5 || n == 10) {
+                    recorder.record(RoboPiLinkRecorder.kInput, kPort, 1, nanos);
+                } else if (n == 6) {
+                    recorder.record(RoboPiLinkRecorder.kInput, kPort, 0, nanos);
+                }
+            }
+        }
+
+        // replayed far faster than recorded, and twice over
+        for (int run = 0; run < 2; run++) {
+            RoboPiLinkReplay replay = new RoboPiLinkReplay(m_file);
+            RPLInputDigital input = new RPLInputDigital(replay.getLink(), kPort);
+            input.setGlitchFilter(0.015);
+            replay.run();
+
+            assertEquals(kCycles, replay.getCycle());
+            assertTrue(input.getValue());
+            assertEquals(1, input.getRisingEdgeCount(), "the pulse is filtered and the held level is not");
+            assertEquals(0, input.getFallingEdgeCount());
+        }
+    }
+
+    @Test
+    void tornTailIsSkipped() throws IOException {
+        // a cycle and an input per cycle, the input alternating
+        try (RoboPiLinkRecorder recorder = new RoboPiLinkRecorder(m_file, 1024)) {
+            for (int n = 0; n < 5; n++) {
+                recorder.record(RoboPiLinkRecorder.kCycle, 0, 0);
+                recorder.record(RoboPiLinkRecorder.kInput, kPort, n % 2 == 0 ? 1 : 0);
+            }
+        }
+        // the program stopped halfway through writing cycle 3's input, after cycle 4 was written
+        try (FileChannel channel = FileChannel.open(m_file, StandardOpenOption.WRITE)) {
+            long value = RoboPiLinkRecorder.kHeaderSize + 7 * RoboPiLinkRecorder.kRecordSize + 16;
+            channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4}), value);
+        }
+
+        assertEquals(9, RoboPiLinkRecorder.read(m_file).size());
+        RoboPiLinkReplay replay = new RoboPiLinkReplay(m_file);
+        RPLInputDigital input = new RPLInputDigital(replay.getLink(), kPort);
+        replay.run();
+
+        assertEquals(3, replay.getCycle());
+        assertTrue(input.getValue(), "the level of the last whole cycle");
+    }
+
+    @Test
+    void encoderCountsAreNotInputLevels() throws IOException {
+        try (RoboPiLinkRecorder recorder = new RoboPiLinkRecorder(m_file, 1024)) {
+            recorder.record(RoboPiLinkRecorder.kCycle, 0, 0);
+            recorder.record(RoboPiLinkRecorder.kEncoderCount, kPort, 42);
+            recorder.record(RoboPiLinkRecorder.kCycle, 0, 0);
+        }
+
+        RoboPiLinkReplay replay = new RoboPiLinkReplay(m_file);
+        RPLInputDigital input = new RPLInputDigital(replay.getLink(), kPort);
+        replay.run();
+
+        assertEquals(2, replay.getCycle());
+        assertFalse(input.getValue());
+        assertEquals(RoboPiLinkRecorder.kEncoderCount, RoboPiLinkRecorder.read(m_file).get(1).type);
+    }
+}
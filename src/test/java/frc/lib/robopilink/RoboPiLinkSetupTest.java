@@ -0,0 +1,129 @@
+package frc.lib.robopilink;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.diozero.internal.provider.mock.MockDeviceFactory;
+
+class RoboPiLinkSetupTest {
+    private static final long kTimeoutNanos = 5_000_000_000L;
+
+    private MockPigpiod m_pigpiod;
+    private RoboPiLink m_link;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        m_pigpiod = new MockPigpiod();
+        m_link = new RoboPiLink(newDeviceFactory(), OptionalInt.empty(), Optional.of(newConnection()));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        m_pigpiod.close();
+    }
+
+    private static MockDeviceFactory newDeviceFactory() {
+        MockDeviceFactory factory = new MockDeviceFactory();
+        new MockBoardConfigurator().configure(factory.getBoardPinInfo());
+        return factory;
+    }
+
+    private PigpioConnection newConnection() throws IOException {
+        return new PigpioConnection(m_pigpiod.getHost(), m_pigpiod.getPort());
+    }
+
+    @Test
+    void failsafeTimeoutFitsPhaseLockedHeartbeats() throws IOException {
+        RoboPiLink link = new RoboPiLink(newDeviceFactory(), OptionalInt.of(2), Optional.of(newConnection()));
+        Failsafe failsafe = new Failsafe(m_pigpiod.getHost());
+        assertThrows(IllegalArgumentException.class, () -> failsafe.setTimeout(0.04));
+
+        // heartbeats only go out from writeOutputs(), once per robot period
+        link.setPhaseLockedPeriod(0.05);
+        assertThrows(IllegalArgumentException.class, () -> link.enableFailsafe(failsafe));
+    }
+
+    @Test
+    void pwmRangesComeFromSetupBatch() throws Exception {
+        // more setup commands than fit in one batch, with PWM pins on both sides of the split
+        int[] ranges = {100, 255, 1000, 4000};
+        int[] pwmPorts = {3, 4, 30, 31};
+        try (PigpioConnection pigpio = newConnection()) {
+            for (int n = 0; n < pwmPorts.length; n++) {
+                pigpio.command(PigpioConnection.CMD_PRS, pwmPorts[n], ranges[n]);
+            }
+        }
+
+        m_link.deferProvisioning();
+        RPLOutputPWM[] pwms = new RPLOutputPWM[pwmPorts.length];
+        pwms[0] = new RPLOutputPWM(m_link, pwmPorts[0]);
+        pwms[1] = new RPLOutputPWM(m_link, pwmPorts[1]);
+        for (int port = 10; port < 26; port++) {
+            new RPLInputDigital(m_link, port);
+        }
+        pwms[2] = new RPLOutputPWM(m_link, pwmPorts[2]);
+        pwms[3] = new RPLOutputPWM(m_link, pwmPorts[3]);
+        long commands = m_pigpiod.getCommandCount();
+        m_link.provisionDevices();
+        assertTrue(m_pigpiod.getCommandCount() - commands > PigpioConnection.kMaxBatch);
+
+        for (RPLOutputPWM pwm : pwms) {
+            pwm.setValue(0.5);
+        }
+        waitFor(() -> {
+            cycle();
+            return m_pigpiod.getPwmDutyCycle(pwmPorts[3]) != 0;
+        });
+        for (int n = 0; n < pwmPorts.length; n++) {
+            assertEquals(MockPigpiod.MODE_OUTPUT, m_pigpiod.getMode(pwmPorts[n]));
+            assertEquals(Math.round(0.5 * ranges[n]), m_pigpiod.getPwmDutyCycle(pwmPorts[n]));
+        }
+    }
+
+    @Test
+    void reconnectRestoresPwmDutyCycle() throws Exception {
+        m_link.enableReconnect(RoboPiLinkSetupTest::newDeviceFactory, this::newConnection);
+        RPLOutputPWM pwm = new RPLOutputPWM(m_link, 8);
+        pwm.setValue(0.25);
+        waitFor(() -> {
+            cycle();
+            return m_pigpiod.getPwmDutyCycle(8) == 64;
+        });
+
+        // the write that finds the connection gone counts as sent, so only the setup after the
+        // reconnect can put it on the pin
+        m_pigpiod.dropAllConnections();
+        pwm.setValue(0.5);
+        waitFor(() -> {
+            cycle();
+            return m_link.getStats().getDisconnects() == 1 && m_link.isConnected();
+        });
+        cycle();
+
+        assertEquals(128, m_pigpiod.getPwmDutyCycle(8));
+        assertEquals(MockPigpiod.MODE_OUTPUT, m_pigpiod.getMode(8));
+    }
+
+    private void cycle() {
+        m_link.runCycle(false);
+        m_link.block();
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + kTimeoutNanos;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+}